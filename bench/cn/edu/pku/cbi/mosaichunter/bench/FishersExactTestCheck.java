@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.bench;
+
+import java.util.Random;
+
+import cn.edu.pku.cbi.mosaichunter.math.CombinationTool;
+import cn.edu.pku.cbi.mosaichunter.math.FishersExactTest;
+
+/**
+ * Checks FishersExactTest.twoSided on tables larger than max_cached_total, which 
+ * are walked by term ratios, against the plain summation over all tables. Runs 
+ * the listed edge cases and then random tables up to MAX_TOTAL reads, and fails 
+ * if any p-value differs by more than TOLERANCE relative to the larger one. 
+ * Differences below the smallest normal double are ignored.
+ * 
+ * Usage: FishersExactTestCheck [tables] [seed]
+ */
+public class FishersExactTestCheck {
+
+    public static final int DEFAULT_TABLES = 200000;
+    public static final long DEFAULT_SEED = 20160101L;
+    public static final int MAX_TOTAL = 5001;
+    public static final double TOLERANCE = 1e-9;
+    public static final int MAX_REPORTED = 20;
+    
+    // deep sites that are fully linked or strand biased, with subnormal tails
+    private static final int[][] EDGE_CASES = new int[][] {
+        {526, 1, 0, 525},
+        {1, 526, 525, 0},
+        {2500, 0, 0, 2500},
+        {2500, 1, 1, 2499},
+        {1000, 0, 0, 1},
+        {0, 0, 0, 200},
+        {100, 100, 100, 100},
+        {4000, 1, 999, 1},
+    };
+    
+    public static void main(String[] args) {
+        int tables = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_TABLES;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_SEED;
+        
+        int mismatches = 0;
+        for (int[] t : EDGE_CASES) {
+            if (!check(t[0], t[1], t[2], t[3], mismatches < MAX_REPORTED)) {
+                mismatches++;
+            }
+        }
+        Random random = new Random(seed);
+        int minTotal = FishersExactTest.MAX_CACHED_TOTAL + 1;
+        for (int i = 0; i < tables; ++i) {
+            int n = minTotal + random.nextInt(MAX_TOTAL - minTotal + 1);
+            
+            // skewed splits reach the far tails as well as the middle
+            int ab = split(random, n);
+            int a = split(random, ab);
+            int c = split(random, n - ab);
+            if (!check(a, ab - a, c, n - ab - c, mismatches < MAX_REPORTED)) {
+                mismatches++;
+            }
+        }
+        System.out.println((EDGE_CASES.length + tables) + " tables, " + 
+                mismatches + " mismatches");
+        if (mismatches > 0) {
+            throw new IllegalStateException(mismatches + " p-values differ");
+        }
+    }
+    
+    private static int split(Random random, int n) {
+        switch (random.nextInt(4)) {
+        case 0:
+            return random.nextInt(Math.min(n, 3) + 1);
+        case 1:
+            return n - random.nextInt(Math.min(n, 3) + 1);
+        default:
+            return random.nextInt(n + 1);
+        }
+    }
+    
+    private static boolean check(int a, int b, int c, int d, boolean report) {
+        double p = FishersExactTest.twoSided(a, b, c, d);
+        double expected = twoSidedBySum(a, b, c, d);
+        if (Math.abs(p - expected) <= 
+                TOLERANCE * Math.max(p, expected) + Double.MIN_NORMAL) {
+            return true;
+        }
+        if (report) {
+            System.out.println("twoSided(" + a + "," + b + "," + c + "," + d + ") = " + p + 
+                    ", expected " + expected);
+        }
+        return false;
+    }
+    
+    // the summation FishersExactTest used before the ratio walk
+    private static double twoSidedBySum(int a, int b, int c, int d) {
+        if (a > c) {
+            int tmp = a;
+            a = c;
+            c = tmp;
+            tmp = b;
+            b = d;
+            d = tmp;
+        }
+        int ac = a + c;
+        int bd = b + d;
+        int ab = a + b;
+        int cd = c + d;
+        double all = CombinationTool.cLog(a + b + c + d, ac);
+        double base = CombinationTool.cLog(ab, a) + CombinationTool.cLog(cd, c) - all;
+        base *= 1 - 1e-8;
+        
+        double p = 0;
+        for (int aa = 0; aa <= ac; aa++) {
+            int bb = ab - aa;
+            int cc = ac - aa;
+            int dd = cd - cc;
+            if (bb < 0 || bb > bd || cc < 0 || cc > cd || dd < 0 || dd > bd) {
+                continue;
+            }
+            double q = CombinationTool.cLog(ab, aa) + CombinationTool.cLog(cd, cc) - all;
+            if (q <= base) {
+                p += Math.exp(q);
+            }
+        }
+        return p;
+    }
+}
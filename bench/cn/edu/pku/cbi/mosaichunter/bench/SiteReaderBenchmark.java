@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.bench;
+
+import java.io.File;
+
+import cn.edu.pku.cbi.mosaichunter.BamSiteReader;
+import cn.edu.pku.cbi.mosaichunter.reference.ReferenceManager;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Per-site cost of BamSiteReader.read at several depths, plus the cost of 
+ * locating the base at a position in every overlapping read with the old 
+ * getReferencePositionAtReadPosition scan and with the alignment block lookup.
+ * 
+ * Usage: SiteReaderBenchmark [depth...]
+ */
+public class SiteReaderBenchmark {
+
+    public static final int[] DEFAULT_DEPTHS = new int[] {30, 100, 250, 500};
+    public static final int REFERENCE_LENGTH = 20000;
+    public static final int READ_LENGTH = 100;
+    public static final long SEED = 20160101L;
+    public static final int ROUNDS = 5;
+    
+    public static void main(String[] args) throws Exception {
+        int[] depths = DEFAULT_DEPTHS;
+        if (args.length > 0) {
+            depths = new int[args.length];
+            for (int i = 0; i < args.length; ++i) {
+                depths[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println(String.format("%8s %16s %16s %16s %16s", 
+                "depth", "read(ns/site)", "sparse(ns/site)", "scan(ns/site)", "blocks(ns/site)"));
+        for (int depth : depths) {
+            run(depth);
+        }
+    }
+    
+    private static void run(int depth) throws Exception {
+        File dir = SyntheticData.createTempDir("site_reader_bench");
+        try {
+            byte[] reference = SyntheticData.createReference(REFERENCE_LENGTH, SEED);
+            File fasta = new File(dir, "ref.fa");
+            SyntheticData.writeFasta(fasta, reference);
+            SAMFileHeader header = SyntheticData.createHeader(REFERENCE_LENGTH);
+            SAMRecord[] reads = SyntheticData.createReads(
+                    header, reference, depth, READ_LENGTH, SEED + depth);
+            File bam = new File(dir, "reads.bam");
+            SyntheticData.writeBam(bam, header, reads);
+            
+            ReferenceManager referenceManager = new ReferenceManager(
+                    fasta.getPath(), new String[] {SyntheticData.CHR});
+            BamSiteReader reader = new BamSiteReader(
+                    referenceManager, bam.getPath(), null, depth * 2, 0, 0, false, 0);
+            reader.init();
+            try {
+                int first = READ_LENGTH * 2;
+                int last = REFERENCE_LENGTH - READ_LENGTH * 2;
+                double dense = 0;
+                double sparse = 0;
+                for (int round = 0; round <= ROUNDS; ++round) {
+                    double d = timeRead(reader, reference, first, last, 1);
+                    double s = timeRead(reader, reference, first, last, 997);
+                    // the first round warms up
+                    if (round > 0) {
+                        dense += d / ROUNDS;
+                        sparse += s / ROUNDS;
+                    }
+                }
+                
+                double scan = 0;
+                double blocks = 0;
+                for (int round = 0; round <= ROUNDS; ++round) {
+                    double sc = timeLocate(reads, first, last, true);
+                    double bl = timeLocate(reads, first, last, false);
+                    if (round > 0) {
+                        scan += sc / ROUNDS;
+                        blocks += bl / ROUNDS;
+                    }
+                }
+                System.out.println(String.format("%8d %16.0f %16.0f %16.0f %16.0f", 
+                        depth, dense, sparse, scan, blocks));
+            } finally {
+                reader.close();
+            }
+        } finally {
+            SyntheticData.deleteDir(dir);
+        }
+    }
+    
+    private static double timeRead(BamSiteReader reader, byte[] reference, 
+            int first, int last, int step) throws Exception {
+        long checksum = 0;
+        int n = 0;
+        long start = System.nanoTime();
+        for (int pos = first; pos <= last; pos += step) {
+            checksum += reader.read(SyntheticData.CHR, pos, reference[pos - 1], null).getDepth();
+            n++;
+        }
+        long time = System.nanoTime() - start;
+        if (checksum < 0) {
+            System.out.println(checksum);
+        }
+        return (double) time / n;
+    }
+    
+    // reads are sorted by start, so the reads overlapping a position are found 
+    // with a sliding index; only the locating itself differs between the two modes
+    private static double timeLocate(SAMRecord[] reads, int first, int last, boolean scan) {
+        long checksum = 0;
+        int n = 0;
+        int from = 0;
+        long start = System.nanoTime();
+        for (int pos = first; pos <= last; pos += 7) {
+            while (from < reads.length && reads[from].getAlignmentStart() + READ_LENGTH + 2 < pos) {
+                from++;
+            }
+            for (int i = from; i < reads.length && reads[i].getAlignmentStart() <= pos; ++i) {
+                SAMRecord read = reads[i];
+                int offset = -1;
+                if (scan) {
+                    for (int j = 0; j < read.getReadLength(); ++j) {
+                        if (pos == read.getReferencePositionAtReadPosition(j + 1)) {
+                            offset = j;
+                            break;
+                        }
+                    }
+                } else {
+                    offset = BamSiteReader.getReadOffset(read, pos);
+                }
+                checksum += offset;
+            }
+            n++;
+        }
+        long time = System.nanoTime() - start;
+        if (checksum == Long.MIN_VALUE) {
+            System.out.println(checksum);
+        }
+        return (double) time / n;
+    }
+}
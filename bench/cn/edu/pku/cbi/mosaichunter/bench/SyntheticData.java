@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+/**
+ * Reproducible synthetic inputs for the benchmarks: a random reference with one
+ * contig and a coordinate-sorted, indexed BAM of reads sampled from it with a 
+ * few mismatches, insertions and deletions. Everything is derived from the seed.
+ */
+public class SyntheticData {
+
+    public static final String CHR = "1";
+    public static final String BASES = "ACGT";
+    
+    private SyntheticData() {
+    }
+    
+    public static byte[] createReference(int length, long seed) {
+        Random random = new Random(seed);
+        byte[] reference = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            reference[i] = (byte) BASES.charAt(random.nextInt(4));
+        }
+        return reference;
+    }
+    
+    public static void writeFasta(File file, byte[] reference) throws IOException {
+        Writer out = new FileWriter(file);
+        try {
+            out.write(">" + CHR + "\n");
+            for (int i = 0; i < reference.length; i += 60) {
+                out.write(new String(reference, i, Math.min(60, reference.length - i), "US-ASCII"));
+                out.write("\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    public static SAMFileHeader createHeader(int referenceLength) {
+        SAMFileHeader header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+        dictionary.addSequence(new SAMSequenceRecord(CHR, referenceLength));
+        header.setSequenceDictionary(dictionary);
+        return header;
+    }
+    
+    // reads sorted by alignment start, about depth reads cover every position;
+    // pairs share the read name and point to each other as mates 
+    public static SAMRecord[] createReads(
+            SAMFileHeader header, byte[] reference, int depth, int readLength, long seed) {
+        Random random = new Random(seed);
+        int n = (int) ((long) depth * reference.length / readLength) & ~1;
+        int maxStart = reference.length - readLength - 10;
+        int[] starts = new int[n];
+        for (int i = 0; i < n; ++i) {
+            starts[i] = 1 + random.nextInt(maxStart);
+        }
+        Arrays.sort(starts);
+        
+        SAMRecord[] reads = new SAMRecord[n];
+        for (int i = 0; i < n; ++i) {
+            reads[i] = createRead(header, reference, starts[i], readLength, random);
+            reads[i].setReadName("r" + (i / 2));
+        }
+        for (int i = 0; i < n; i += 2) {
+            setMate(reads[i], reads[i + 1], true);
+            setMate(reads[i + 1], reads[i], false);
+        }
+        return reads;
+    }
+    
+    private static void setMate(SAMRecord read, SAMRecord mate, boolean first) {
+        read.setReadPairedFlag(true);
+        read.setFirstOfPairFlag(first);
+        read.setSecondOfPairFlag(!first);
+        read.setMateReferenceName(CHR);
+        read.setMateAlignmentStart(mate.getAlignmentStart());
+        read.setMateNegativeStrandFlag(mate.getReadNegativeStrandFlag());
+    }
+    
+    private static SAMRecord createRead(
+            SAMFileHeader header, byte[] reference, int start, int readLength, Random random) {
+        byte[] bases = new byte[readLength];
+        byte[] qualities = new byte[readLength];
+        String cigar;
+        int r = random.nextInt(20);
+        int split = readLength / 4 + random.nextInt(readLength / 2);
+        int refPos = start - 1;
+        if (r == 0) {
+            // 2 bases deleted from the reference
+            cigar = split + "M2D" + (readLength - split) + "M";
+            for (int i = 0; i < readLength; ++i) {
+                bases[i] = reference[refPos + i + (i < split ? 0 : 2)];
+            }
+        } else if (r == 1) {
+            // 2 bases inserted into the read
+            cigar = split + "M2I" + (readLength - split - 2) + "M";
+            for (int i = 0; i < readLength; ++i) {
+                if (i < split) {
+                    bases[i] = reference[refPos + i];
+                } else if (i < split + 2) {
+                    bases[i] = (byte) BASES.charAt(random.nextInt(4));
+                } else {
+                    bases[i] = reference[refPos + i - 2];
+                }
+            }
+        } else {
+            cigar = readLength + "M";
+            System.arraycopy(reference, refPos, bases, 0, readLength);
+        }
+        for (int i = 0; i < readLength; ++i) {
+            if (random.nextInt(100) == 0) {
+                bases[i] = (byte) BASES.charAt(random.nextInt(4));
+            }
+            qualities[i] = (byte) (10 + random.nextInt(31));
+        }
+        
+        SAMRecord read = new SAMRecord(header);
+        read.setReferenceName(CHR);
+        read.setAlignmentStart(start);
+        read.setCigarString(cigar);
+        read.setReadBases(bases);
+        read.setBaseQualities(qualities);
+        read.setMappingQuality(60);
+        read.setReadNegativeStrandFlag(random.nextBoolean());
+        return read;
+    }
+    
+    // writes the BAM and its index (the .bam suffix replaced by .bai)
+    public static void writeBam(File file, SAMFileHeader header, SAMRecord[] reads) {
+        SAMFileWriter writer = new SAMFileWriterFactory()
+                .setCreateIndex(true)
+                .makeBAMWriter(header, true, file);
+        try {
+            for (SAMRecord read : reads) {
+                writer.addAlignment(read);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+    
+    public static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        return dir;
+    }
+    
+    public static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDir(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+}
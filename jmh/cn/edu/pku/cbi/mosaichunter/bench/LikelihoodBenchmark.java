@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import cn.edu.pku.cbi.mosaichunter.MosaicHunterContext;
+import cn.edu.pku.cbi.mosaichunter.Site;
+import cn.edu.pku.cbi.mosaichunter.filter.MosaicFilter;
+
+/**
+ * MosaicFilter.calcLikelihood on a site with about 20% minor allele reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LikelihoodBenchmark {
+
+    public static final long SEED = 20160101L;
+    
+    @Param({"25", "150", "500"})
+    public int depth;
+    
+    private MosaicFilter filter;
+    private Site site;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        filter = new MosaicFilter("mosaic_filter", 500, 20, 20, true, 0, "single", 0, 0, "F",
+                MosaicFilter.DEFAULT_BASE_CHANGE_RATE, true, 0.05, 
+                null, null, null, null, null, null, 0.01, 1e-8, 1e-7, 0.002, 1e-4, 
+                null, null, null);
+        filter.init(new MosaicHunterContext(null, null, null));
+        site = SiteBenchmark.createSite(depth, 0.2, new Random(SEED + depth));
+    }
+    
+    @Benchmark
+    public double[] calcLikelihood() {
+        return filter.calcLikelihood(site, 0, 1);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import cn.edu.pku.cbi.mosaichunter.ReadsCache;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Mate lookups in the reads cache after a window of paired reads has been 
+ * cached, as the complete linkage filter does them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReadsCacheBenchmark {
+
+    public static final int REFERENCE_LENGTH = 20000;
+    public static final int READ_LENGTH = 100;
+    public static final long SEED = 20160101L;
+    
+    @Param({"30", "150"})
+    public int depth;
+    
+    private ReadsCache readsCache;
+    private SAMRecord[] reads;
+    private int next = 0;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        byte[] reference = SyntheticData.createReference(REFERENCE_LENGTH, SEED);
+        SAMFileHeader header = SyntheticData.createHeader(REFERENCE_LENGTH);
+        reads = SyntheticData.createReads(header, reference, depth, READ_LENGTH, SEED + depth);
+        readsCache = new ReadsCache(100000);
+        for (SAMRecord read : reads) {
+            readsCache.cacheRead(read);
+        }
+    }
+    
+    @Benchmark
+    public SAMRecord getMate() {
+        SAMRecord read = reads[next++];
+        if (next == reads.length) {
+            next = 0;
+        }
+        return readsCache.getMate(read);
+    }
+}
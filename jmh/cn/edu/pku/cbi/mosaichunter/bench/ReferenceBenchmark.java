@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.bench;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import cn.edu.pku.cbi.mosaichunter.reference.ReferenceManager;
+
+/**
+ * Reference base lookups: random positions through getBase and consecutive 
+ * positions, as the pileup asks for them, through getBaseWithCache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReferenceBenchmark {
+
+    public static final int REFERENCE_LENGTH = 1000000;
+    public static final long SEED = 20160101L;
+    public static final int POSITIONS = 1 << 16;
+    
+    private File dir;
+    private ReferenceManager referenceManager;
+    private long[] randomPositions;
+    private int next = 0;
+    private long position = 1;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = SyntheticData.createTempDir("reference_bench");
+        File fasta = new File(dir, "ref.fa");
+        SyntheticData.writeFasta(fasta, SyntheticData.createReference(REFERENCE_LENGTH, SEED));
+        referenceManager = new ReferenceManager(fasta.getPath(), new String[] {SyntheticData.CHR});
+        Random random = new Random(SEED);
+        randomPositions = new long[POSITIONS];
+        for (int i = 0; i < POSITIONS; ++i) {
+            randomPositions[i] = 1 + random.nextInt(REFERENCE_LENGTH);
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticData.deleteDir(dir);
+    }
+    
+    @Benchmark
+    public byte getBase() {
+        return referenceManager.getBase(0, randomPositions[next++ & (POSITIONS - 1)]);
+    }
+    
+    @Benchmark
+    public byte getBaseWithCache() {
+        if (++position > REFERENCE_LENGTH) {
+            position = 1;
+        }
+        return referenceManager.getBaseWithCache(0, position);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import cn.edu.pku.cbi.mosaichunter.ReadsCache;
+import cn.edu.pku.cbi.mosaichunter.RegionScanner;
+import cn.edu.pku.cbi.mosaichunter.Site;
+import cn.edu.pku.cbi.mosaichunter.filter.NullFilter;
+import cn.edu.pku.cbi.mosaichunter.reference.ReferenceManager;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileReader.ValidationStringency;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * The per-read pileup loop: one full scan of a synthetic BAM with an in-process 
+ * filter that rejects every site.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScanBenchmark {
+
+    public static final int REFERENCE_LENGTH = 50000;
+    public static final int READ_LENGTH = 100;
+    public static final long SEED = 20160101L;
+    
+    @Param({"30", "150"})
+    public int depth;
+    
+    private File dir;
+    private ReferenceManager referenceManager;
+    private SAMFileReader input;
+    private RegionScanner scanner;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = SyntheticData.createTempDir("scan_bench");
+        byte[] reference = SyntheticData.createReference(REFERENCE_LENGTH, SEED);
+        File fasta = new File(dir, "ref.fa");
+        SyntheticData.writeFasta(fasta, reference);
+        SAMFileHeader header = SyntheticData.createHeader(REFERENCE_LENGTH);
+        SAMRecord[] reads = SyntheticData.createReads(
+                header, reference, depth, READ_LENGTH, SEED + depth);
+        File bam = new File(dir, "reads.bam");
+        SyntheticData.writeBam(bam, header, reads);
+        
+        referenceManager = new ReferenceManager(fasta.getPath(), new String[] {SyntheticData.CHR});
+        input = new SAMFileReader(bam);
+        input.setValidationStringency(ValidationStringency.SILENT);
+        scanner = new RegionScanner(input, referenceManager, new ReadsCache(100000), 
+                new NullFilter("null_filter", false), 500, 0, 0, true, 0, false, false);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        input.close();
+        SyntheticData.deleteDir(dir);
+    }
+    
+    @Benchmark
+    public List<Site> scan() {
+        List<Site> passedSites = new ArrayList<Site>();
+        scanner.scan(null, new Random(SEED), passedSites);
+        return passedSites;
+    }
+}
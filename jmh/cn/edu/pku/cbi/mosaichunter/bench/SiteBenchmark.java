@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import cn.edu.pku.cbi.mosaichunter.Site;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Site allele counting, which runs the first time any allele count, the major 
+ * or minor allele or the bases of a site are asked for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SiteBenchmark {
+
+    public static final long SEED = 20160101L;
+    
+    @Param({"25", "150", "500"})
+    public int depth;
+    
+    private Site site;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        site = createSite(depth, 0.2, new Random(SEED + depth));
+    }
+    
+    // a site with reference A, minor allele C at the given fraction and a few 
+    // G/T sequencing errors
+    public static Site createSite(int depth, double minorFraction, Random random) {
+        SAMFileHeader header = SyntheticData.createHeader(1000);
+        Site site = new Site(depth);
+        site.init(SyntheticData.CHR, 0, 500, (byte) 'A', 0, 0, null);
+        for (int i = 0; i < depth; ++i) {
+            byte base;
+            double r = random.nextDouble();
+            if (r < 0.02) {
+                base = (byte) (random.nextBoolean() ? 'G' : 'T');
+            } else if (r < 0.02 + minorFraction) {
+                base = 'C';
+            } else {
+                base = 'A';
+            }
+            SAMRecord read = new SAMRecord(header);
+            read.setReadName("r" + i);
+            read.setReferenceName(SyntheticData.CHR);
+            read.setAlignmentStart(451 + random.nextInt(50));
+            read.setCigarString("100M");
+            byte[] bases = new byte[100];
+            byte[] qualities = new byte[100];
+            for (int j = 0; j < 100; ++j) {
+                bases[j] = (byte) SyntheticData.BASES.charAt(random.nextInt(4));
+                qualities[j] = (byte) (10 + random.nextInt(31));
+            }
+            short pos = (short) (500 - read.getAlignmentStart());
+            bases[pos] = base;
+            read.setReadBases(bases);
+            read.setBaseQualities(qualities);
+            read.setMappingQuality(60);
+            read.setReadNegativeStrandFlag(random.nextBoolean());
+            site.increaceRealDepth();
+            site.addRead(read, pos);
+        }
+        return site;
+    }
+    
+    @Benchmark
+    public byte calculateAlleleCounts() {
+        // init resets the counts, the major allele triggers counting again
+        site.init(SyntheticData.CHR, 0, 500, (byte) 'A', depth, depth, null);
+        return site.getMajorAllele();
+    }
+}
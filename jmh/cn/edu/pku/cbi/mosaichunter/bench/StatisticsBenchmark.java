@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import cn.edu.pku.cbi.mosaichunter.math.FishersExactTest;
+import cn.edu.pku.cbi.mosaichunter.math.WilcoxonRankSumTest;
+
+/**
+ * The statistical tests of the strand bias, within-read position and paired 
+ * filters, on tables and samples drawn for the given depth.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StatisticsBenchmark {
+
+    public static final long SEED = 20160101L;
+    public static final int INPUTS = 1024;
+    
+    @Param({"25", "150", "500"})
+    public int depth;
+    
+    private int[][] tables;
+    private double[][] xs;
+    private double[][] ys;
+    private int next = 0;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(SEED + depth);
+        tables = new int[INPUTS][4];
+        xs = new double[INPUTS][];
+        ys = new double[INPUTS][];
+        for (int i = 0; i < INPUTS; ++i) {
+            int minor = random.nextInt(depth / 2 + 1);
+            int major = depth - minor;
+            int majorPositive = random.nextInt(major + 1);
+            int minorPositive = random.nextInt(minor + 1);
+            tables[i][0] = majorPositive;
+            tables[i][1] = major - majorPositive;
+            tables[i][2] = minorPositive;
+            tables[i][3] = minor - minorPositive;
+            
+            xs[i] = new double[Math.max(major, 1)];
+            ys[i] = new double[Math.max(minor, 1)];
+            for (int j = 0; j < xs[i].length; ++j) {
+                xs[i][j] = random.nextInt(100);
+            }
+            for (int j = 0; j < ys[i].length; ++j) {
+                ys[i][j] = random.nextInt(100);
+            }
+        }
+    }
+    
+    @Benchmark
+    public double fishersExactTest() {
+        int[] t = tables[next++ & (INPUTS - 1)];
+        return FishersExactTest.twoSided(t[0], t[1], t[2], t[3]);
+    }
+    
+    @Benchmark
+    public double wilcoxonRankSumTest() {
+        int i = next++ & (INPUTS - 1);
+        return WilcoxonRankSumTest.twoSided(xs[i], ys[i]);
+    }
+}
@@ -26,28 +26,39 @@ package cn.edu.pku.cbi.mosaichunter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
 import cn.edu.pku.cbi.mosaichunter.config.Validator;
+import cn.edu.pku.cbi.mosaichunter.filter.AndFilter;
+import cn.edu.pku.cbi.mosaichunter.filter.ExcludeMask;
+import cn.edu.pku.cbi.mosaichunter.filter.ExomeParameterFilter;
 import cn.edu.pku.cbi.mosaichunter.filter.Filter;
 import cn.edu.pku.cbi.mosaichunter.filter.FilterFactory;
+import cn.edu.pku.cbi.mosaichunter.filter.MaskableFilter;
+import cn.edu.pku.cbi.mosaichunter.filter.OrFilter;
+import cn.edu.pku.cbi.mosaichunter.filter.SiteStream;
+import cn.edu.pku.cbi.mosaichunter.math.FishersExactTest;
+import cn.edu.pku.cbi.mosaichunter.output.OutputManager;
+import cn.edu.pku.cbi.mosaichunter.reference.PackedReferenceFile;
 import cn.edu.pku.cbi.mosaichunter.reference.Reference;
 import cn.edu.pku.cbi.mosaichunter.reference.ReferenceManager;
-import net.sf.samtools.AlignmentBlock;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileReader.ValidationStringency;
-import net.sf.samtools.SAMRecord;
-import net.sf.samtools.SAMRecordIterator;
 import net.sf.samtools.SAMSequenceRecord;
 
 
@@ -58,6 +69,11 @@ public class BamScanner {
             "13", "14", "15", "16", "17", "18", "19", "20", "21", "22", "X", "Y"  
     };
     
+    public static final int DEFAULT_THREADS = 1;
+    public static final int DEFAULT_CHUNK_SIZE = 10000000;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 600;
+    public static final String CHECKPOINT_FILE_NAME = "scan.checkpoint";
+    
     private final String inputFile;
     private final String indexFile;    
     private final String referenceFile;    
@@ -69,7 +85,13 @@ public class BamScanner {
     private final Filter postProcessFilter;  
     private final long seed;
     private final boolean depthSampling;
-    private final Random random;
+    private final int threads;
+    private final int chunkSize;
+    private Random random;
+    
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    private long scannedChunks = 0;
+    private long scannedSites = 0;
     
     public BamScanner() throws Exception {
         this(ConfigManager.getInstance().get(null, "input_file", null),
@@ -84,7 +106,9 @@ public class BamScanner {
              ConfigManager.getInstance().getBoolean(null, "remove_duplicates", true),
              ConfigManager.getInstance().getIntFlags(null, "remove_flags", 0),
              ConfigManager.getInstance().getLong(null, "seed", System.currentTimeMillis()),
-             ConfigManager.getInstance().getBoolean(null, "depth_sampling", false)
+             ConfigManager.getInstance().getBoolean(null, "depth_sampling", false),
+             ConfigManager.getInstance().getInt(null, "threads", DEFAULT_THREADS),
+             ConfigManager.getInstance().getInt(null, "chunk_size", DEFAULT_CHUNK_SIZE)
              );        
     }
     
@@ -93,6 +117,16 @@ public class BamScanner {
             int maxSites, boolean removeDuplicates, int removeFlags, 
             long seed, boolean depthSampling) 
                     throws Exception {
+        this(inputFile, indexFile, referenceFile, inProcessFilter, postProcessFilter, 
+             maxDepth, maxSites, removeDuplicates, removeFlags, seed, depthSampling, 
+             DEFAULT_THREADS, DEFAULT_CHUNK_SIZE);
+    }
+    
+    public BamScanner(String inputFile, String indexFile, String referenceFile, 
+            Filter inProcessFilter, Filter postProcessFilter, int maxDepth, 
+            int maxSites, boolean removeDuplicates, int removeFlags, 
+            long seed, boolean depthSampling, int threads, int chunkSize) 
+                    throws Exception {
         this.inputFile = inputFile;
         this.indexFile = indexFile;
         this.referenceFile = referenceFile;
@@ -104,6 +138,8 @@ public class BamScanner {
         this.removeFlags = removeFlags;
         this.seed = seed;
         this.depthSampling = depthSampling;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
         this.random = new Random(this.seed);
     }
     
@@ -118,37 +154,86 @@ public class BamScanner {
         if (!Validator.validateFileExists("index_file", indexFile, false)) {
             ok = false;
         }
+        if (!OutputManager.validate()) {
+            ok = false;
+        }
+        if (!FishersExactTest.validate()) {
+            ok = false;
+        }
+        if (threads > 1 && containsFilter(inProcessFilter, ExomeParameterFilter.class)) {
+            // it collects the sites of the whole run in one list and one R data file
+            System.out.println("Error - threads must be 1 with " + 
+                    ExomeParameterFilter.class.getSimpleName());
+            ok = false;
+        }
         return ok;
     }
     
+    private static boolean containsFilter(Filter filter, Class<? extends Filter> filterClass) {
+        if (filterClass.isInstance(filter)) {
+            return true;
+        }
+        for (Filter f : getChildFilters(filter)) {
+            if (containsFilter(f, filterClass)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static Filter[] getChildFilters(Filter filter) {
+        if (filter instanceof AndFilter) {
+            return ((AndFilter) filter).getFilters();
+        } else if (filter instanceof OrFilter) {
+            return ((OrFilter) filter).getFilters();
+        }
+        return new Filter[0];
+    }
+    
+    // e.g. "in_process_filter(depth_filter,mosaic_filter(...))"
+    private static String getFilterNames(Filter filter) {
+        StringBuilder sb = new StringBuilder(filter.getName());
+        Filter[] filters = getChildFilters(filter);
+        if (filters.length > 0) {
+            sb.append('(');
+            for (int i = 0; i < filters.length; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(getFilterNames(filters[i]));
+            }
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+    
     public void scan() throws Exception  {       
         System.out.println(new Date() + " Initializing...");
         
         boolean good = validate();
         good &= inProcessFilter.validate();
         good &= postProcessFilter.validate();
+        for (String name : getExcludeMaskNames()) {
+            if (getMaskableFilter(inProcessFilter, name) == null) {
+                System.out.println("Error - exclude_masks is invalid: " + name);
+                good = false;
+            }
+        }
         if (!good) {
             return;
         }
         ConfigManager config = ConfigManager.getInstance();
         
-        // site object facetory
-        int initialMinDepth = 160;
-        int initialMaxDepth = Math.max(initialMinDepth, maxDepth);
-        SiteObjectManager siteManager = new SiteObjectManager(initialMinDepth, initialMaxDepth);
-        
         // reference manager
         ReferenceManager referenceManager = createReferenceManager();
         
         // sam reader
-        SAMFileReader samFileReader = new SAMFileReader(
-                new File(inputFile), 
-                indexFile == null ? null : new File(indexFile));
-        samFileReader.setValidationStringency(ValidationStringency.SILENT);
+        SAMFileReader samFileReader = openInputFile();
      
         // reads cache
-        ReadsCache readsCache = new ReadsCache(config.getInt(
-                null, "max_recent_reads" , 100000));
+        ReadsCache readsCache = new ReadsCache(
+                config.getInt(null, "max_recent_reads", ReadsCache.DEFAULT_MAX_READS),
+                config.getInt(null, "max_mate_distance", ReadsCache.DEFAULT_MAX_MATE_DISTANCE));
         
         // context
         MosaicHunterContext context = 
@@ -156,15 +241,8 @@ public class BamScanner {
         
        
         
-        System.out.println(new Date() + " Initializing filters...");
-        inProcessFilter.init(context);
-        postProcessFilter.init(context);
-        
         // scan
-        SAMFileReader input = new SAMFileReader(
-                new File(inputFile), 
-                indexFile == null ? null : new File(indexFile));
-        input.setValidationStringency(ValidationStringency.SILENT);
+        SAMFileReader input = openInputFile();
         
         boolean ok = true;
         for (SAMSequenceRecord seq : input.getFileHeader().getSequenceDictionary().getSequences()) {
@@ -188,8 +266,6 @@ public class BamScanner {
         long processedSites = 0;
         long totalSites = 0;
         long startTime = System.currentTimeMillis();
-        long depthSum = 0;
-        long depthCount = 0;
         
         int minReadQuality = config.getInt(null, "min_read_quality", 0);
         int minMappingQuality = config.getInt(null, "min_mapping_quality", 0);
@@ -239,7 +315,32 @@ public class BamScanner {
             totalSites = referenceManager.getTotalLength();
         }
         
-        List<Site> passedSites = new ArrayList<Site>();
+        // max_sites bounds the candidates kept in memory, the others are spilled to disk
+        CandidateStore passedSites = new CandidateStore(maxSites, getSpillDir());
+        
+        // checkpoints
+        boolean checkpointEnabled = config.getBoolean(null, "checkpoint", false);
+        boolean resume = config.getBoolean(null, "resume", false);
+        long checkpointInterval = config.getLong(
+                null, "checkpoint_interval", DEFAULT_CHECKPOINT_INTERVAL) * 1000;
+        File checkpointFile = new File(getOutputDir(), CHECKPOINT_FILE_NAME);
+        Checkpoint checkpoint = null;
+        if (resume && threads <= 1 && checkpointFile.exists()) {
+            checkpoint = Checkpoint.read(checkpointFile, passedSites);
+            if (!checkpoint.matches(
+                    inputFile, seed, regions, getFilterNames(inProcessFilter), totalSites)) {
+                input.close();
+                samFileReader.close();
+                throw new Exception("checkpoint does not match the input: " + 
+                        checkpointFile.getPath());
+            }
+            // before init, so that the outputs are reopened at the saved sizes
+            checkpoint.restoreFilterState(inProcessFilter, false);
+        }
+        
+        System.out.println(new Date() + " Initializing filters...");
+        inProcessFilter.init(context);
+        postProcessFilter.init(context);
         
         System.out.println(new Date() + " Scanning...");
 
@@ -252,182 +353,53 @@ public class BamScanner {
                 " Sites:" + 0 + "/" + totalSites + 
                 " Progress:" + String.format("%.2f", 0.0) + "%");
         
-        
-        for (Region region : regions) {
-            long startPositionId;
-            long endPositionId;
-            SAMRecordIterator it = null;
-            if (region == null) {
-                it = input.iterator();
-                startPositionId = 0;
-                endPositionId = Long.MAX_VALUE;
-            } else {
-                it = input.queryOverlapping(region.getChr(), region.getStart(), region.getEnd()); 
-                startPositionId = getPositionId(region.getChrId(), region.getStart());
-                endPositionId = getPositionId(region.getChrId(), region.getEnd()); 
+        if (threads > 1) {
+            processedReads = scanInParallel(
+                    regions, referenceManager, minReadQuality, minMappingQuality, 
+                    totalSites, startTime, passedSites, checkpointEnabled, resume);
+        } else {
+            int firstRegion = 0;
+            long resumedReads = 0;
+            if (checkpoint != null) {
+                firstRegion = checkpoint.getNextRegion();
+                processedSites = checkpoint.getProcessedSites();
+                resumedReads = checkpoint.getProcessedReads();
+                random = checkpoint.getRandom();
+                System.out.println(new Date() + " Resuming after " + firstRegion + "/" + 
+                        regions.size() + " regions with " + passedSites.size() + " sites");
             }
-            
-            String lastRefName = null;
-            int lastRefPos = 0;
-            long lastPositionId = 0;      
-            
-            int readsBufferSize = (1 << 17) - 1;
-            SAMRecord[] readsBuffer = new SAMRecord[readsBufferSize + 1];
-            int readsBatchSize = 1000;
-            long first = 0;
-            long last = 0;
-            
-            PriorityQueue<Long> siteIds = new PriorityQueue<Long>();
-            HashMap<Long, Site> sites = new HashMap<Long, Site>();
-            
-            while (it.hasNext() || first != last) {
-                while (last - first < readsBufferSize && it.hasNext()) {
-                    SAMRecord read = it.next();
-                    readsBuffer[(int) (last & readsBufferSize)] = read;
-                    last++;
-                    readsCache.cacheRead(read);
-                }
-                long end = Math.min(first + readsBatchSize, last);
-                while (first < end) {
-                    SAMRecord read = readsBuffer[(int) (first & readsBufferSize)];
-                    processedReads++;
-                    first++;
-                    if (first % 1000000 == 0) {
-                        long startRefPos = 1;
-                        if (getRefId(lastPositionId) == getRefId(startPositionId)) {
-                            startRefPos = getRefPos(startPositionId);
-                        }
-                        long done = processedSites + lastRefPos - startRefPos;
-                        double progress = (double) done * 100 / (totalSites <= 0 ? 1 : totalSites);
-                        System.out.println(
-                                new Date() + " -" +
-                                " Time(s):" + (System.currentTimeMillis() - startTime) / 1000 + 
-                                " Reads:" + processedReads +
-                                " Sites:" + done + "/" + totalSites + 
-                                " Progress:" + String.format("%.2f", progress) + "%" + 
-                                " " + lastRefName + ":" + lastRefPos);
-                    }
-                    
-                    // filter invalid reference
-                    if (!read.getReferenceName().equals(lastRefName) && 
-                        referenceManager.getReferenceId(read.getReferenceName()) < 0) {
-                        continue;
-                    }
-                    
-                    if (read.getDuplicateReadFlag() && removeDuplicates) {
-                        continue;
-                    }
-                    if ((read.getFlags() & removeFlags) != 0) {
-                        continue;
-                    }
-                    if (read.getMappingQuality() < minMappingQuality) {
-                        continue;
-                    }
-                    String refName = read.getReferenceName();
-                    int refId = referenceManager.getReferenceId(refName);
-                    if (refId < 0) {
-                        continue;
-                    }
-                    
-                    lastPositionId = getPositionId(refId, read.getAlignmentStart());
-                    lastRefName = read.getReferenceName();
-                    lastRefPos = read.getAlignmentStart();
-                    byte[] bases = read.getReadBases();
-					byte[] quals = read.getBaseQualities();
-					if (bases.length != quals.length) {
-						continue;
-					}
-                    for (AlignmentBlock block : read.getAlignmentBlocks()) {
-                        int refPos = block.getReferenceStart();
-                        for (int i = 0; i < block.getLength(); ++i, ++refPos) {
-                            long posId = getPositionId(refId, refPos);
-                            if (posId < startPositionId || posId > endPositionId) {
-                                continue;
-                            }
-                            short basePos = (short) (block.getReadStart() + i - 1);
-							if (basePos < 0 || basePos >= quals.length) {
-								continue;
-							}
-                            if (quals[basePos] < minReadQuality) {
-                                continue;
-                            }
-                            int baseId = MosaicHunterHelper.BASE_TO_ID[bases[basePos]];
-                            if (baseId < 0) {
-                                continue;
-                            }
-                            Site site = sites.get(posId);
-                            if (site == null) {
-                                byte ref = referenceManager.getBaseWithCache(refId, refPos);
-                                if (ref == 'N') {
-                                    continue;
-                                }
-
-                                int initialDepth = (int)(depthSum / (depthCount + 1) * 2);
-                                initialDepth = Math.max(initialDepth, initialMinDepth);
-                                initialDepth = Math.min(initialDepth, initialMaxDepth);
-                                site = siteManager.getSite(initialDepth);
-                                site.init(refName, refId, refPos, ref, 0, 0, null);
-                                sites.put(posId, site);
-                                siteIds.add(posId);
-                            }
-                            site.increaceRealDepth();
-                            if (site.getDepth() < maxDepth) {
-                                if (site.getDepth() >= site.getMaxDepth()) {
-                                    Site newSite = siteManager.getSite(site.getMaxDepth() + 1);
-                                    newSite.copy(site);
-                                    sites.put(posId, newSite);
-                                    siteManager.returnSite(site);
-                                    site = newSite;
-                                }
-                                site.addRead(read, basePos);
-                                
-                            } else if (depthSampling && random.nextInt(site.getRealDepth()) < maxDepth) {
-                               int ii = random.nextInt(maxDepth);
-                               site.replaceRead(ii, read, basePos);
-                            }
-                            
-                        }
-                    }
+            RegionScanner scanner = new RegionScanner(
+                    input, referenceManager, readsCache, inProcessFilter, 
+                    maxDepth, minReadQuality, minMappingQuality, 
+                    removeDuplicates, removeFlags, depthSampling, 
+                    config.getBoolean(null, "retain_reads", false));
+            scanner.setExcludeMasks(createExcludeMasks(inProcessFilter));
+            long lastCheckpointTime = System.currentTimeMillis();
+            for (int i = firstRegion; i < regions.size(); ++i) {
+                Region region = regions.get(i);
+                scanner.setProgress(processedSites, totalSites, startTime);
+                scanner.scan(region, random, passedSites);
+                if (region != null) {
+                    processedSites += region.getEnd() - region.getStart() + 1;
+                } else {
+                    processedSites = totalSites;
                 }
                 
-                boolean hasMoreReads = it.hasNext() || first != last;
-                
-                for (Iterator<Long> itor = siteIds.iterator(); itor.hasNext();) {
-                    long positionId = itor.next();
-                    Site site = sites.get(positionId);
-                    if (site == null) {
-                        System.out.println("ERROR!!! null site. " + 
-                                referenceManager.getReference(
-                                    getRefId(positionId)).getName() + ":" + getRefPos(positionId));
-                        itor.remove();
-                        continue;
-                    }
-                    if (hasMoreReads && positionId >= lastPositionId) {
-                        break;
-                    }
-                    depthSum += site.getDepth();
-                    depthCount++;
-                    
-                    sites.remove(positionId);
-                    itor.remove();
-                    
-                    if (passedSites.size() < maxSites && inProcessFilter.filter(site)) {
-                        passedSites.add(site);   
-                    } else {
-                        siteManager.returnSite(site);
-                    }
+                // the last region is always saved, so post-processing can be resumed
+                if (checkpointEnabled && (i == regions.size() - 1 || 
+                        System.currentTimeMillis() - lastCheckpointTime >= checkpointInterval)) {
+                    checkpoint = new Checkpoint(inputFile, seed, regions, 
+                            getFilterNames(inProcessFilter), totalSites);
+                    checkpoint.setProgress(
+                            i + 1, processedSites, resumedReads + scanner.getProcessedReads());
+                    checkpoint.setRandom(random);
+                    checkpoint.saveFilterState(inProcessFilter);
+                    checkpoint.setSites(passedSites);
+                    checkpoint.write(checkpointFile);
+                    lastCheckpointTime = System.currentTimeMillis();
                 }
-                //siteManager.printInfo();
-                 
-                 
-
-            } 
-            if (region != null) {
-                processedSites += region.getEnd() - region.getStart() + 1;
-            } else {
-                processedSites = totalSites;
             }
-            it.close();
+            processedReads = resumedReads + scanner.getProcessedReads();
         }
         
         System.out.println(
@@ -440,8 +412,9 @@ public class BamScanner {
         StatsManager.end("in_process");
         
         StatsManager.start("post_process");
-        postProcessFilter.filter(passedSites);
+        postProcess(passedSites);
         StatsManager.end("post_process");
+        passedSites.close();
          
         inProcessFilter.printStats(true);
         postProcessFilter.printStats(false);
@@ -451,21 +424,329 @@ public class BamScanner {
         inProcessFilter.close();
         postProcessFilter.close();
         
+        if (checkpointEnabled || resume) {
+            checkpointFile.delete();
+        }
     }
     
     
   
     
-    private long getPositionId(long refId, long refPos) {
-        return (refId << 40) + refPos;
+    private void postProcess(CandidateStore passedSites) {
+        SiteStream stream = postProcessFilter.open(SiteStream.DISCARD);
+        for (Site site : passedSites) {
+            stream.put(site);
+        }
+        stream.end();
+    }
+    
+    private SAMFileReader openInputFile() {
+        SAMFileReader reader = new SAMFileReader(
+                new File(inputFile), 
+                indexFile == null ? null : new File(indexFile));
+        reader.setValidationStringency(ValidationStringency.SILENT);
+        return reader;
+    }
+    
+    private long scanInParallel(List<Region> regions, ReferenceManager referenceManager, 
+            int minReadQuality, int minMappingQuality, long totalSites, long startTime,
+            CandidateStore passedSites, boolean checkpointEnabled, boolean resume) throws Exception {
+        
+        List<Region> chunks = splitRegions(regions, chunkSize);
+        String outputDir = getOutputDir();
+        File chunksDir = new File(outputDir, "chunks");
+        
+        int n = Math.min(threads, chunks.size());
+        System.out.println(new Date() + " Scanning " + chunks.size() + " chunks with " + 
+                n + " threads...");
+        
+        nextChunk.set(0);
+        scannedChunks = 0;
+        scannedSites = 0;
+        long processedReads = 0;
+        
+        // finished chunks keep their output directory and a checkpoint next to it
+        boolean[] done = new boolean[chunks.size()];
+        for (int i = 0; i < chunks.size(); ++i) {
+            File checkpointFile = getChunkCheckpointFile(chunksDir, i);
+            if (!checkpointFile.exists()) {
+                continue;
+            }
+            if (!resume) {
+                checkpointFile.delete();
+                continue;
+            }
+            Checkpoint checkpoint = Checkpoint.read(checkpointFile, passedSites);
+            if (!checkpoint.matches(
+                    inputFile, seed, chunks, getFilterNames(inProcessFilter), totalSites)) {
+                throw new Exception("checkpoint does not match the input: " + 
+                        checkpointFile.getPath());
+            }
+            checkpoint.restoreFilterState(inProcessFilter, true);
+            processedReads += checkpoint.getProcessedReads();
+            scannedChunks++;
+            scannedSites += checkpoint.getProcessedSites();
+            done[i] = true;
+        }
+        if (scannedChunks > 0) {
+            System.out.println(new Date() + " Resuming with " + scannedChunks + 
+                    " finished chunks");
+        }
+        
+        ScanWorker[] workers = new ScanWorker[n];
+        ExecutorService executor = Executors.newFixedThreadPool(n);
+        try {
+            for (int i = 0; i < n; ++i) {
+                workers[i] = new ScanWorker(referenceManager, minReadQuality, minMappingQuality, 
+                        chunks, chunksDir, passedSites, done, checkpointEnabled, totalSites, startTime);
+            }
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (ScanWorker worker : workers) {
+                futures.add(executor.submit(worker));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    nextChunk.set(chunks.size());
+                    throw new Exception("scanning failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            for (ScanWorker worker : workers) {
+                if (worker != null) {
+                    processedReads += worker.scanner.getProcessedReads();
+                    worker.close();
+                }
+            }
+        }
+        
+        for (int i = 0; i < chunks.size(); ++i) {
+            File chunkDir = new File(chunksDir, String.valueOf(i));
+            mergeChunkOutput(chunkDir, new File(outputDir));
+            getChunkCheckpointFile(chunksDir, i).delete();
+        }
+        chunksDir.delete();
+        return processedReads;
+    }
+    
+    private static String getOutputDir() {
+        String outputDir = ConfigManager.getInstance().get(null, "output_dir", ".");
+        if (outputDir.trim().isEmpty()) {
+            outputDir = ".";
+        }
+        return outputDir;
+    }
+    
+    private static File getSpillDir() {
+        String spillDir = ConfigManager.getInstance().get(null, "spill_dir", null);
+        if (spillDir == null || spillDir.trim().isEmpty()) {
+            return new File(getOutputDir());
+        }
+        return new File(spillDir);
     }
     
-    private int getRefId(long posId) {
-        return (int) (posId >>> 40);
+    private static File getChunkCheckpointFile(File chunksDir, int i) {
+        return new File(chunksDir, i + ".checkpoint");
     }
     
-    private int getRefPos(long posId) {
-        return (int) (posId & ((1L << 40) - 1));
+    private static List<Region> splitRegions(List<Region> regions, int chunkSize) {
+        List<Region> chunks = new ArrayList<Region>();
+        for (Region region : regions) {
+            if (chunkSize <= 0) {
+                chunks.add(region);
+                continue;
+            }
+            for (long start = region.getStart(); start <= region.getEnd(); start += chunkSize) {
+                long end = Math.min(start + chunkSize - 1, region.getEnd());
+                chunks.add(new Region(region.getChr(), region.getChrId(), (int) start, (int) end));
+            }
+        }
+        return chunks;
+    }
+    
+    private static void mergeChunkOutput(File chunkDir, File outputDir) throws IOException {
+        File[] files = chunkDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        byte[] buffer = new byte[1 << 16];
+        for (File file : files) {
+            
+            // a BGZF reader stops at the end marker of the first chunk
+            long remaining = OutputManager.getAppendLength(file);
+            InputStream in = new FileInputStream(file);
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(new File(outputDir, file.getName()), true);
+                while (remaining > 0) {
+                    int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n < 0) {
+                        break;
+                    }
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                }
+            } finally {
+                in.close();
+                if (out != null) {
+                    out.close();
+                }
+            }
+            file.delete();
+        }
+        chunkDir.delete();
+    }
+    
+    private synchronized void chunkDone(
+            Region chunk, long processedReads, long totalSites, long startTime) {
+        scannedChunks++;
+        scannedSites += chunk.getEnd() - chunk.getStart() + 1;
+        double progress = (double) scannedSites * 100 / (totalSites <= 0 ? 1 : totalSites);
+        System.out.println(
+                new Date() + " -" +
+                " Time(s):" + (System.currentTimeMillis() - startTime) / 1000 + 
+                " Chunks:" + scannedChunks + 
+                " Sites:" + scannedSites + "/" + totalSites + 
+                " Progress:" + String.format("%.2f", progress) + "%" + 
+                " " + chunk.getChr() + ":" + chunk.getStart() + "-" + chunk.getEnd());
+    }
+    
+    private class ScanWorker implements Callable<Void> {
+        
+        private final SAMFileReader samFileReader;
+        private final SAMFileReader input;
+        private final Filter filter;
+        private final RegionScanner scanner;
+        private final List<Region> chunks;
+        private final File chunksDir;
+        private final CandidateStore passedSites;
+        private final boolean[] done;
+        private final boolean checkpointEnabled;
+        private final long totalSites;
+        private final long startTime;
+        
+        public ScanWorker(ReferenceManager referenceManager, 
+                int minReadQuality, int minMappingQuality, 
+                List<Region> chunks, File chunksDir, CandidateStore passedSites,
+                boolean[] done, boolean checkpointEnabled,
+                long totalSites, long startTime) throws Exception {
+            this.chunks = chunks;
+            this.chunksDir = chunksDir;
+            this.passedSites = passedSites;
+            this.done = done;
+            this.checkpointEnabled = checkpointEnabled;
+            this.totalSites = totalSites;
+            this.startTime = startTime;
+            
+            ConfigManager config = ConfigManager.getInstance();
+            samFileReader = openInputFile();
+            input = openInputFile();
+            ReadsCache readsCache = new ReadsCache(
+                    config.getInt(null, "max_recent_reads", ReadsCache.DEFAULT_MAX_READS),
+                    config.getInt(null, "max_mate_distance", ReadsCache.DEFAULT_MAX_MATE_DISTANCE));
+            filter = FilterFactory.create(config.get(null, "in_process_filter_name", null));
+            
+            // the outputs are opened in the directory of each chunk, not in output_dir
+            filter.setOutputDir(null);
+            filter.init(new MosaicHunterContext(samFileReader, referenceManager, readsCache));
+            scanner = new RegionScanner(
+                    input, referenceManager, readsCache, filter, 
+                    maxDepth, minReadQuality, minMappingQuality, 
+                    removeDuplicates, removeFlags, depthSampling, 
+                    config.getBoolean(null, "retain_reads", false));
+            scanner.setExcludeMasks(createExcludeMasks(filter));
+        }
+        
+        public Void call() throws Exception {
+            for (;;) {
+                int i = nextChunk.getAndIncrement();
+                if (i >= chunks.size()) {
+                    break;
+                }
+                if (done[i]) {
+                    continue;
+                }
+                Region chunk = chunks.get(i);
+                File chunkDir = new File(chunksDir, String.valueOf(i));
+                chunkDir.mkdirs();
+                filter.setOutputDir(chunkDir.getPath());
+                filter.clearStats();
+                long processedReads = scanner.getProcessedReads();
+                
+                // each chunk samples with its own seed so that the result does not 
+                // depend on which thread picks it up, in the filters as well
+                List<Site> sites = new ArrayList<Site>();
+                filter.setRandomSeed(seed + i);
+                scanner.scan(chunk, new Random(seed + i), sites);
+                synchronized (passedSites) {
+                    passedSites.addAll(sites);
+                }
+                synchronized (inProcessFilter) {
+                    inProcessFilter.mergeStats(filter);
+                }
+                if (checkpointEnabled) {
+                    Checkpoint checkpoint = new Checkpoint(inputFile, seed, chunks, 
+                            getFilterNames(filter), totalSites);
+                    checkpoint.setProgress(i + 1, chunk.getEnd() - chunk.getStart() + 1, 
+                            scanner.getProcessedReads() - processedReads);
+                    checkpoint.saveFilterState(filter);
+                    checkpoint.setSites(sites);
+                    checkpoint.write(getChunkCheckpointFile(chunksDir, i));
+                }
+                chunkDone(chunk, scanner.getProcessedReads(), totalSites, startTime);
+            }
+            return null;
+        }
+        
+        public void close() throws Exception {
+            filter.close();
+            input.close();
+            samFileReader.close();
+        }
+    }
+    
+    private static String[] getExcludeMaskNames() {
+        return ConfigManager.getInstance().getValues(null, "exclude_masks", new String[0]);
+    }
+    
+    // only the filters directly under the in-process filter can be masks, the
+    // sites they reject could not pass anyway
+    private static MaskableFilter getMaskableFilter(Filter inProcessFilter, String name) {
+        Filter[] filters = inProcessFilter instanceof AndFilter ? 
+                ((AndFilter) inProcessFilter).getFilters() : new Filter[] {inProcessFilter};
+        for (Filter filter : filters) {
+            if (filter.getName().equals(name.trim()) && filter instanceof MaskableFilter) {
+                return (MaskableFilter) filter;
+            }
+        }
+        return null;
+    }
+    
+    private static ExcludeMask[] createExcludeMasks(Filter inProcessFilter) {
+        List<ExcludeMask> masks = new ArrayList<ExcludeMask>();
+        for (String name : getExcludeMaskNames()) {
+            ExcludeMask mask = getMaskableFilter(inProcessFilter, name).createExcludeMask();
+            if (mask != null) {
+                masks.add(mask);
+            }
+        }
+        return masks.toArray(new ExcludeMask[masks.size()]);
+    }
+    
+    private File getReferenceCacheFile() {
+        String cacheFileName = ConfigManager.getInstance().get(null, "reference_cache_file", null);
+        if (cacheFileName != null && !cacheFileName.trim().isEmpty()) {
+            return new File(cacheFileName);
+        }
+        String odName = ConfigManager.getInstance().get(null, "output_dir", ".");
+        File od = new File(odName);
+        if (!od.isDirectory()) {
+            od.mkdirs();
+        }
+        return new File(od, new File(referenceFile).getName() + ".mhref");
     }
     
     private ReferenceManager createReferenceManager() throws Exception {
@@ -475,32 +756,15 @@ public class BamScanner {
     
         ReferenceManager referenceManager = null;
         if (ConfigManager.getInstance().getBoolean(null, "enable_reference_cache", false)) {
-            String odName = ConfigManager.getInstance().get(null, "output_dir", ".");
-            File od = new File(odName);
-            if (!od.isDirectory()) {
-                od.mkdirs();
-            }
-            File cacheFile = new File(od, new File(referenceFile + ".cache").getName());
+            File cacheFile = getReferenceCacheFile();
             System.out.println(new Date() + " Reading reference from cache file: " + 
                     cacheFile.getAbsolutePath());
-            if (cacheFile.isFile()) {
-                ObjectInputStream ois = null;
-                try {
-                    FileInputStream fis = new FileInputStream(cacheFile);
-                    ois = new ObjectInputStream(fis);
-                    referenceManager = (ReferenceManager) ois.readObject();
-                    ois.close();
-                } catch (Exception e) {
-                    System.out.println(new Date() + " Cannot read cache file: " + 
-                            cacheFile.getAbsolutePath() + " " + e.getMessage());
-                } finally {
-                    if (ois != null) {
-                        try {
-                            ois.close();
-                        } catch (Exception e) {
-                        }
-                    }
-                }
+            try {
+                referenceManager = PackedReferenceFile.read(
+                        cacheFile, new File(referenceFile), validReferences);
+            } catch (Exception e) {
+                System.out.println(new Date() + " Cannot read cache file: " + 
+                        cacheFile.getAbsolutePath() + " " + e.getMessage());
             }
             
             if (referenceManager == null) {
@@ -508,24 +772,12 @@ public class BamScanner {
                 referenceManager = new ReferenceManager(referenceFile, validReferences);
                 System.out.println(new Date() + " Writing reference to cache file: " + 
                         cacheFile.getAbsolutePath());
-                ObjectOutputStream oos = null;
                 try {
-                    FileOutputStream fos = new FileOutputStream(cacheFile);
-                    oos = new ObjectOutputStream(fos);
-                    oos.writeObject(referenceManager);
-                    oos.close(); 
+                    PackedReferenceFile.write(referenceManager, cacheFile, new File(referenceFile));
                 } catch (Exception e) {
                     System.out.println(new Date() + " Cannot write cache file: " + 
                             cacheFile.getAbsolutePath() + " " + e.getMessage());
                     e.printStackTrace();
-                    
-                } finally {
-                    if (oos != null) {
-                        try {
-                            oos.close();
-                        } catch (Exception e) {
-                        }
-                    }
                 }
             }
         } else {
@@ -25,18 +25,27 @@
 package cn.edu.pku.cbi.mosaichunter;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Random;
 
 import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
 import cn.edu.pku.cbi.mosaichunter.reference.ReferenceManager;
+import net.sf.samtools.AlignmentBlock;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileReader.ValidationStringency;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMRecordIterator;
 
-
+/**
+ * Reads the pileup of single sites of a BAM file. Sites are usually asked for in
+ * increasing order, so the reader keeps one iterator open and a window of the 
+ * reads overlapping the last site, and only seeks again for another reference, 
+ * a site behind the last one or one more than max_gap bases ahead.
+ */
 public class BamSiteReader {
     
+    public static final int DEFAULT_MAX_GAP = 10000;
+    
     private final ReferenceManager referenceManager;
     private final String inputFile;
     private final String indexFile;    
@@ -47,9 +56,17 @@ public class BamSiteReader {
     private final int removeFlags;
     private final long seed;
     private final boolean depthSampling;
-    private final Random random;
+    private Random random;
+    private final int maxGap;
     
     private SAMFileReader input;
+    private SAMRecordIterator iterator = null;
+    private String currentChr = null;
+    private int currentPosition = 0;
+    private SAMRecord nextRead = null;
+    private SAMRecord[] window = new SAMRecord[64];
+    private int windowSize = 0;
+    private Site site = null;
     
     public BamSiteReader(ReferenceManager referenceManager, String inputFile, String indexFile, 
             int maxDepth, int minReadQuality, int minMappingQuality,
@@ -65,8 +82,18 @@ public class BamSiteReader {
         this.seed = ConfigManager.getInstance().getLong(null, "seed", System.currentTimeMillis());
         this.depthSampling = ConfigManager.getInstance().getBoolean(null, "depth_sampling", false);
         this.random = new Random(seed);
+        this.maxGap = ConfigManager.getInstance().getInt(null, "site_reader_max_gap", DEFAULT_MAX_GAP);
     }
 
+    public Random getRandom() {
+        return random;
+    }
+    
+    // depth sampling continues from a saved generator when a scan is resumed
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+    
     public void init() throws IOException {
         input = new SAMFileReader(
                 new File(inputFile), 
@@ -76,6 +103,7 @@ public class BamSiteReader {
     }
 
     public void close() throws Exception {
+        resetIterator();
         if (input != null) {
             input.close();
             input = null;
@@ -90,16 +118,93 @@ public class BamSiteReader {
             throw new IllegalArgumentException("position is invalid");
         }
         
-        SAMRecordIterator it = input.queryOverlapping(chr, (int) position, (int) position);
+        try {
+            moveTo(chr, (int) position);
+        } catch (RuntimeException e) {
+            resetIterator();
+            throw e;
+        }
+        
+        // the site is reused by the next call
+        if (site == null) {
+            site = new Site(maxDepth + 1);
+        }
+        site.init(chr, referenceManager.getReferenceId(chr), position, 
+                (byte) Character.toUpperCase(refBase), 0, 0, alleleOrder);
         int depth = 0;
         int realDepth = 0;
-
-        SAMRecord[] baseRecords = new SAMRecord[maxDepth + 1];
-        short[] basePos = new short[maxDepth + 1];
-        byte[] bases = new byte[maxDepth + 1];
-        byte[] baseQualities = new byte[maxDepth + 1];
-        while (it.hasNext()) {
-            SAMRecord read = it.next(); 
+        for (int r = 0; r < windowSize; ++r) {
+            SAMRecord read = window[r];
+            int offset = getReadOffset(read, position);
+            if (offset < 0 || offset >= read.getReadLength()) {
+                continue;
+            }
+            short i = (short) offset;
+            if (read.getBaseQualities()[i] >= minReadQuality) {
+                realDepth++;
+                site.increaceRealDepth();
+                if (depth < maxDepth) {
+                    depth++;
+                    site.addRead(read, i);
+                } else if (depthSampling && random.nextInt(realDepth) < maxDepth) {
+                    site.replaceRead(random.nextInt(maxDepth), read, i);
+                }
+            }
+        }
+        return site;   
+    }
+    
+    // 0-based offset of the read base aligned to the position, or -1 if the position
+    // falls into a deletion, a skipped region or outside of the read; the alignment 
+    // blocks are in reference order and a read has only a few of them
+    public static int getReadOffset(SAMRecord read, long position) {
+        for (AlignmentBlock block : read.getAlignmentBlocks()) {
+            int refStart = block.getReferenceStart();
+            if (position < refStart) {
+                return -1;
+            }
+            if (position < refStart + block.getLength()) {
+                return block.getReadStart() - 1 + (int) (position - refStart);
+            }
+        }
+        return -1;
+    }
+    
+    // fills the window with the reads that pass the read filters and overlap 
+    // the position
+    private void moveTo(String chr, int position) {
+        if (iterator == null || !chr.equals(currentChr) || 
+            position < currentPosition || position - currentPosition > maxGap) {
+            resetIterator();
+            // reads overlapping anything from the position to the end of the reference
+            iterator = input.queryOverlapping(chr, position, 0);
+            currentChr = chr;
+        } else {
+            int n = 0;
+            for (int i = 0; i < windowSize; ++i) {
+                if (window[i].getAlignmentEnd() >= position) {
+                    window[n++] = window[i];
+                }
+            }
+            for (int i = n; i < windowSize; ++i) {
+                window[i] = null;
+            }
+            windowSize = n;
+        }
+        currentPosition = position;
+        
+        for (;;) {
+            if (nextRead == null) {
+                if (!iterator.hasNext()) {
+                    break;
+                }
+                nextRead = iterator.next();
+            }
+            if (nextRead.getAlignmentStart() > position) {
+                break;
+            }
+            SAMRecord read = nextRead;
+            nextRead = null;
             if (read.getDuplicateReadFlag() && removeDuplicates) {
                 continue;
             }
@@ -109,42 +214,26 @@ public class BamSiteReader {
             if (read.getMappingQuality() < minMappingQuality) {
                 continue;
             }
-            for (short i = 0; i < read.getReadLength(); ++i) {
-                if (position == read.getReferencePositionAtReadPosition(i + 1)) {
-                    if (read.getBaseQualities()[i] >= minReadQuality) {
-                        realDepth++;
-                        int ii = -1;
-                        if (depth < maxDepth) {
-                            ii = depth;
-                            depth++;
-                        } else if (depthSampling && random.nextInt(realDepth) < maxDepth) {
-                            ii = random.nextInt(maxDepth);
-                        }
-                        if (ii >= 0) {
-                            baseRecords[ii] = read;
-                            basePos[ii] = i;
-                            bases[ii] = read.getReadBases()[i];
-                            baseQualities[ii] = read.getBaseQualities()[i];                                
-                        }
-                    }
-                    break;
-                }
+            if (read.getAlignmentEnd() < position) {
+                continue;
             }
+            if (windowSize == window.length) {
+                window = Arrays.copyOf(window, windowSize * 2);
+            }
+            window[windowSize++] = read;
         }
-         
-        Site site = new Site(
-                         chr,
-                         referenceManager.getReferenceId(chr),
-                         position,
-                         (byte) Character.toUpperCase(refBase),
-                         depth,
-                         realDepth,
-                         bases,
-                         baseQualities,
-                         baseRecords,
-                         basePos,
-                         alleleOrder);           
-        it.close();
-        return site;   
-    }    
+    }
+    
+    private void resetIterator() {
+        if (iterator != null) {
+            iterator.close();
+            iterator = null;
+        }
+        currentChr = null;
+        nextRead = null;
+        for (int i = 0; i < windowSize; ++i) {
+            window[i] = null;
+        }
+        windowSize = 0;
+    }
 }
@@ -0,0 +1,279 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package cn.edu.pku.cbi.mosaichunter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Candidate sites of the scan. At most maxSitesInMemory sites are kept in memory,
+ * the others are written to sorted runs in the spill directory. Iteration merges 
+ * the runs and gives the sites in coordinate order.
+ * Runs left behind by an interrupted scan are removed when a new store is created,
+ * so the spill directory should not be shared by concurrent scans.
+ */
+public class CandidateStore extends AbstractCollection<Site> {
+
+    public static final Comparator<Site> POSITION_ORDER = new Comparator<Site>() {
+        public int compare(Site a, Site b) {
+            if (a.getRefId() != b.getRefId()) {
+                return a.getRefId() < b.getRefId() ? -1 : 1;
+            }
+            if (a.getRefPos() != b.getRefPos()) {
+                return a.getRefPos() < b.getRefPos() ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+    
+    private static final String RUN_PREFIX = "candidates_";
+    private static final String RUN_SUFFIX = ".run";
+    
+    private final int maxSitesInMemory;
+    private final File spillDir;
+    private final List<Site> sites = new ArrayList<Site>();
+    private final List<File> runs = new ArrayList<File>();
+    private int size = 0;
+    
+    public CandidateStore(int maxSitesInMemory, File spillDir) {
+        this.maxSitesInMemory = Math.max(1, maxSitesInMemory);
+        this.spillDir = spillDir;
+        File[] files = spillDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(RUN_PREFIX) && file.getName().endsWith(RUN_SUFFIX)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+    
+    @Override
+    public int size() {
+        return size;
+    }
+    
+    public int getRunCount() {
+        return runs.size();
+    }
+    
+    @Override
+    public boolean add(Site site) {
+        sites.add(site);
+        size++;
+        if (sites.size() >= maxSitesInMemory) {
+            try {
+                spill();
+            } catch (IOException e) {
+                throw new IllegalStateException("failed to spill candidate sites", e);
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public void clear() {
+        close();
+        size = 0;
+    }
+    
+    public void close() {
+        sites.clear();
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+    
+    private void spill() throws IOException {
+        Collections.sort(sites, POSITION_ORDER);
+        if (!spillDir.isDirectory()) {
+            spillDir.mkdirs();
+        }
+        File run = File.createTempFile(RUN_PREFIX, RUN_SUFFIX, spillDir);
+        run.deleteOnExit();
+        runs.add(run);
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(new FileOutputStream(run), 
+                        new Deflater(Deflater.BEST_SPEED), 1 << 16), 1 << 16));
+        try {
+            for (Site site : sites) {
+                out.writeBoolean(true);
+                site.write(out);
+                out.reset();
+            }
+            out.writeBoolean(false);
+        } finally {
+            out.close();
+        }
+        StatsManager.count("candidate_store.spilled", sites.size());
+        sites.clear();
+    }
+    
+    @Override
+    public Iterator<Site> iterator() {
+        Collections.sort(sites, POSITION_ORDER);
+        if (runs.isEmpty()) {
+            return Collections.unmodifiableList(sites).iterator();
+        }
+        try {
+            return new MergeIterator();
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to read candidate sites", e);
+        }
+    }
+    
+    private interface Source {
+        Site peek();
+        void next() throws IOException;
+        void close();
+    }
+    
+    private static class ListSource implements Source {
+        private final Iterator<Site> it;
+        private Site current;
+        
+        ListSource(List<Site> sites) {
+            it = sites.iterator();
+            current = it.hasNext() ? it.next() : null;
+        }
+        
+        public Site peek() {
+            return current;
+        }
+        
+        public void next() {
+            current = it.hasNext() ? it.next() : null;
+        }
+        
+        public void close() {
+        }
+    }
+    
+    private static class RunSource implements Source {
+        private final ObjectInputStream in;
+        private Site current;
+        
+        RunSource(File run) throws IOException {
+            in = new ObjectInputStream(new BufferedInputStream(
+                    new InflaterInputStream(new FileInputStream(run)), 1 << 16));
+            next();
+        }
+        
+        public Site peek() {
+            return current;
+        }
+        
+        public void next() throws IOException {
+            current = null;
+            if (in.readBoolean()) {
+                try {
+                    current = Site.read(in);
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("invalid candidate run", e);
+                }
+            } else {
+                close();
+            }
+        }
+        
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+    
+    // sites at the same position come from the earlier run first
+    private class MergeIterator implements Iterator<Site> {
+        private final PriorityQueue<Integer> queue;
+        private final Source[] sources;
+        
+        MergeIterator() throws IOException {
+            sources = new Source[runs.size() + 1];
+            for (int i = 0; i < runs.size(); ++i) {
+                sources[i] = new RunSource(runs.get(i));
+            }
+            sources[runs.size()] = new ListSource(sites);
+            queue = new PriorityQueue<Integer>(sources.length, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int c = POSITION_ORDER.compare(sources[a].peek(), sources[b].peek());
+                    return c != 0 ? c : a.compareTo(b);
+                }
+            });
+            for (int i = 0; i < sources.length; ++i) {
+                if (sources[i].peek() != null) {
+                    queue.add(i);
+                }
+            }
+        }
+        
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+        
+        public Site next() {
+            Integer i = queue.poll();
+            if (i == null) {
+                throw new NoSuchElementException();
+            }
+            Site site = sources[i].peek();
+            try {
+                sources[i].next();
+            } catch (IOException e) {
+                for (Source source : sources) {
+                    source.close();
+                }
+                throw new IllegalStateException("failed to read candidate sites", e);
+            }
+            if (sources[i].peek() != null) {
+                queue.add(i);
+            }
+            return site;
+        }
+        
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package cn.edu.pku.cbi.mosaichunter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import cn.edu.pku.cbi.mosaichunter.filter.Filter;
+
+/**
+ * State of a scan after its first regions: the candidate sites, the in-process
+ * filter counters and output sizes, and the random generator used for depth
+ * sampling. The parallel scan writes one per finished chunk. A checkpoint is 
+ * only resumed by a scan of the same input, seed, regions and in-process filters.
+ */
+public class Checkpoint {
+
+    public static final long MAGIC = 0x4d48434b50303032L; // MHCKP002
+    
+    private final String inputFile;
+    private final long seed;
+    private final long regionsHash;
+    private final String filterNames;
+    private final int regionCount;
+    private final long totalSites;
+    private int nextRegion = 0;
+    private long processedSites = 0;
+    private long processedReads = 0;
+    private Random random = null;
+    private byte[] filterState = null;
+    private Collection<Site> sites = new ArrayList<Site>();
+    
+    public Checkpoint(String inputFile, long seed, List<Region> regions, String filterNames, 
+            long totalSites) {
+        this(inputFile, seed, hashRegions(regions), filterNames, regions.size(), totalSites);
+    }
+    
+    private Checkpoint(String inputFile, long seed, long regionsHash, String filterNames, 
+            int regionCount, long totalSites) {
+        this.inputFile = inputFile;
+        this.seed = seed;
+        this.regionsHash = regionsHash;
+        this.filterNames = filterNames;
+        this.regionCount = regionCount;
+        this.totalSites = totalSites;
+    }
+    
+    public boolean matches(String inputFile, long seed, List<Region> regions, 
+            String filterNames, long totalSites) {
+        return this.inputFile.equals(inputFile) && 
+               this.seed == seed &&
+               this.regionsHash == hashRegions(regions) &&
+               this.filterNames.equals(filterNames) &&
+               this.regionCount == regions.size() && 
+               this.totalSites == totalSites;
+    }
+    
+    // sampled regions of the same count and size still differ in their positions
+    private static long hashRegions(List<Region> regions) {
+        long hash = 1125899906842597L;
+        for (Region region : regions) {
+            hash = 31 * hash + region.getChr().hashCode();
+            hash = 31 * hash + region.getStart();
+            hash = 31 * hash + region.getEnd();
+        }
+        return hash;
+    }
+    
+    public int getNextRegion() {
+        return nextRegion;
+    }
+    
+    public long getProcessedSites() {
+        return processedSites;
+    }
+    
+    public long getProcessedReads() {
+        return processedReads;
+    }
+    
+    public Random getRandom() {
+        return random;
+    }
+    
+    public Collection<Site> getSites() {
+        return sites;
+    }
+    
+    public void setProgress(int nextRegion, long processedSites, long processedReads) {
+        this.nextRegion = nextRegion;
+        this.processedSites = processedSites;
+        this.processedReads = processedReads;
+    }
+    
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+    
+    public void setSites(Collection<Site> sites) {
+        this.sites = sites;
+    }
+    
+    public void saveFilterState(Filter filter) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        filter.writeState(out);
+        out.close();
+        filterState = buffer.toByteArray();
+    }
+    
+    public void restoreFilterState(Filter filter, boolean merge) throws IOException {
+        if (filterState != null) {
+            filter.readState(new DataInputStream(new ByteArrayInputStream(filterState)), merge);
+        }
+    }
+    
+    // written to a temporary file first, so an interrupted write keeps the old checkpoint
+    public void write(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory()) {
+            dir.mkdirs();
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile), 1 << 16));
+        try {
+            out.writeLong(MAGIC);
+            out.writeUTF(inputFile);
+            out.writeLong(seed);
+            out.writeLong(regionsHash);
+            out.writeUTF(filterNames);
+            out.writeInt(regionCount);
+            out.writeLong(totalSites);
+            out.writeInt(nextRegion);
+            out.writeLong(processedSites);
+            out.writeLong(processedReads);
+            out.writeObject(random);
+            out.writeInt(filterState == null ? -1 : filterState.length);
+            if (filterState != null) {
+                out.write(filterState);
+            }
+            out.writeInt(sites.size());
+            for (Site site : sites) {
+                site.write(out);
+                out.reset();
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            file.delete();
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("failed to write checkpoint " + file);
+            }
+        }
+    }
+    
+    public static Checkpoint read(File file) throws IOException {
+        return read(file, new ArrayList<Site>());
+    }
+    
+    // the sites are added to the given collection, which may spill them to disk
+    public static Checkpoint read(File file, Collection<Site> sites) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+                new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readLong() != MAGIC) {
+                throw new IOException("invalid checkpoint file: " + file);
+            }
+            Checkpoint checkpoint = new Checkpoint(
+                    in.readUTF(), in.readLong(), in.readLong(), in.readUTF(), 
+                    in.readInt(), in.readLong());
+            checkpoint.sites = sites;
+            checkpoint.nextRegion = in.readInt();
+            checkpoint.processedSites = in.readLong();
+            checkpoint.processedReads = in.readLong();
+            checkpoint.random = (Random) in.readObject();
+            int n = in.readInt();
+            if (n >= 0) {
+                checkpoint.filterState = new byte[n];
+                in.readFully(checkpoint.filterState);
+            }
+            n = in.readInt();
+            for (int i = 0; i < n; ++i) {
+                checkpoint.sites.add(Site.read(in));
+            }
+            return checkpoint;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("invalid checkpoint file: " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -29,11 +29,16 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
 import cn.edu.pku.cbi.mosaichunter.reference.ReferenceManager;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
 
 public class MosaicHunterHelper {
 
@@ -215,5 +220,35 @@ public class MosaicHunterHelper {
         return ret;
     }
     
-
+    public static SAMRecord[] fetchReads(SAMFileReader reader, Site site) {
+        SAMRecord[] reads = new SAMRecord[site.getDepth()];
+        if (site.hasReads()) {
+            System.arraycopy(site.getReads(), 0, reads, 0, reads.length);
+            return reads;
+        }
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        for (int i = 0; i < reads.length; ++i) {
+            ids.put(getReadKey(
+                    site.getReadName(i), site.getAlignmentStart(i), site.getFlags(i)), i);
+        }
+        SAMRecordIterator it = reader.queryOverlapping(
+                site.getRefName(), (int) site.getRefPos(), (int) site.getRefPos());
+        try {
+            while (it.hasNext() && !ids.isEmpty()) {
+                SAMRecord read = it.next();
+                Integer i = ids.remove(getReadKey(
+                        read.getReadName(), read.getAlignmentStart(), read.getFlags()));
+                if (i != null) {
+                    reads[i] = read;
+                }
+            }
+        } finally {
+            it.close();
+        }
+        return reads;
+    }
+    
+    private static String getReadKey(String readName, int alignmentStart, int flags) {
+        return readName + '\t' + alignmentStart + '\t' + flags;
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter;
+
+/**
+ * Live sites of one reference kept in a circular array indexed by position. 
+ * Reads arrive sorted by alignment start, so the live sites always form a short
+ * contiguous span and can be released in position order.
+ */
+public class PileupWindow {
+
+    private Site[] sites;
+    private int mask;
+    private int refId = -1;
+    private long first = 0;
+    private long end = 0;
+    private int size = 0;
+    
+    public PileupWindow(int initialCapacity) {
+        int capacity = 1;
+        while (capacity < initialCapacity) {
+            capacity <<= 1;
+        }
+        sites = new Site[capacity];
+        mask = capacity - 1;
+    }
+    
+    public int getRefId() {
+        return refId;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    public Site get(int refId, long refPos) {
+        if (refId != this.refId || refPos < first || refPos >= end) {
+            return null;
+        }
+        return sites[(int) (refPos & mask)];
+    }
+    
+    public void put(int refId, long refPos, Site site) {
+        if (size == 0) {
+            this.refId = refId;
+            first = refPos;
+            end = refPos + 1;
+        } else if (refId != this.refId) {
+            throw new IllegalStateException(
+                    "window still holds sites of reference " + this.refId);
+        } else {
+            long newFirst = Math.min(first, refPos);
+            long newEnd = Math.max(end, refPos + 1);
+            if (newEnd - newFirst > sites.length) {
+                grow(newEnd - newFirst);
+            }
+            first = newFirst;
+            end = newEnd;
+        }
+        int i = (int) (refPos & mask);
+        if (sites[i] == null) {
+            size++;
+        }
+        sites[i] = site;
+    }
+    
+    public Site pollFirst() {
+        return pollFirst(Long.MAX_VALUE);
+    }
+    
+    // removes and returns the live site with the lowest position before the given
+    // position, or null if there is none
+    public Site pollFirst(long beforeRefPos) {
+        while (size > 0 && first < beforeRefPos) {
+            int i = (int) (first & mask);
+            Site site = sites[i];
+            first++;
+            if (site != null) {
+                sites[i] = null;
+                size--;
+                if (size == 0) {
+                    end = first;
+                }
+                return site;
+            }
+        }
+        return null;
+    }
+    
+    private void grow(long span) {
+        int capacity = sites.length;
+        while (capacity < span) {
+            if (capacity >= (1 << 30)) {
+                throw new IllegalStateException("pileup window too large: " + span);
+            }
+            capacity <<= 1;
+        }
+        Site[] newSites = new Site[capacity];
+        int newMask = capacity - 1;
+        for (long pos = first; pos < end; ++pos) {
+            Site site = sites[(int) (pos & mask)];
+            if (site != null) {
+                newSites[(int) (pos & newMask)] = site;
+            }
+        }
+        sites = newSites;
+        mask = newMask;
+    }
+}
@@ -24,60 +24,175 @@
 
 package cn.edu.pku.cbi.mosaichunter;
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
 import net.sf.samtools.SAMRecord;
 
+/**
+ * Indexes the primary alignments of the reads being scanned by read name so 
+ * that mates can be looked up without going back to the input file. A pair is 
+ * kept until the scan has passed both of its reads; the first read of a pair 
+ * whose mate is expected ahead waits in the index until the mate is cached.
+ */
 public class ReadsCache {
     
-    public final int DEFAULT_BUCKSIZE = 51;
+    public static final int DEFAULT_MAX_READS = 1 << 22;
+    public static final int DEFAULT_MAX_MATE_DISTANCE = 100000;
+    
+    private final int maxReads;
+    private final int maxMateDistance;
+    private final Map<String, Pair> pairs = new HashMap<String, Pair>();
+    private final ArrayDeque<Pair> queue = new ArrayDeque<Pair>();
+    private int size = 0;
     
-    private final int bucketNumber;
-    private final int bucketSize;
-    private final SAMRecord[][] buckets;
-    private final int[] bucketIds;
+    // mates starting in (max(startKey, evictedKey), endKey) are in the index
+    private long startKey = 0;
+    private long endKey = -1;
+    private long evictedKey = -1;
 
-    public ReadsCache(int bucketNumber) {
-        this.bucketNumber = bucketNumber;
-        bucketSize = DEFAULT_BUCKSIZE;
-        buckets = new SAMRecord[bucketNumber][bucketSize];
-        bucketIds = new int[bucketNumber];
+    public ReadsCache(int maxReads) {
+        this(maxReads, DEFAULT_MAX_MATE_DISTANCE);
+    }
+    
+    public ReadsCache(int maxReads, int maxMateDistance) {
+        this.maxReads = maxReads;
+        this.maxMateDistance = maxMateDistance;
+    }
+    
+    /**
+     * Starts caching the reads of a new region, or of the whole input if 
+     * refIndex is negative.
+     */
+    public void reset(int refIndex, int start) {
+        clear();
+        startKey = refIndex < 0 ? 0 : getKey(refIndex, start);
+    }
+    
+    public void clear() {
+        pairs.clear();
+        queue.clear();
+        size = 0;
+        startKey = 0;
+        endKey = -1;
+        evictedKey = -1;
     }
     
     public void cacheRead(SAMRecord read) {
-        int n = read.getAlignmentStart() % bucketNumber;
-        buckets[n][bucketIds[n]] = read;
-        bucketIds[n]++;
-        if (bucketIds[n] >= bucketSize) {
-            bucketIds[n] = 0;
+        int refIndex = read.getReferenceIndex();
+        if (refIndex < 0 || read.getAlignmentStart() <= 0) {
+            return;
+        }
+        endKey = getKey(refIndex, read.getAlignmentStart());
+        if (!isIndexed(read) || read.getNotPrimaryAlignmentFlag() || 
+            read.getSupplementaryAlignmentFlag()) {
+            return;
+        }
+        
+        String name = read.getReadName();
+        Pair pair = pairs.get(name);
+        if (pair == null) {
+            pair = new Pair();
+            pairs.put(name, pair);
+            queue.add(pair);
+        }
+        if (read.getFirstOfPairFlag()) {
+            if (pair.first != null) {
+                return;
+            }
+            pair.first = read;
+        } else {
+            if (pair.second != null) {
+                return;
+            }
+            pair.second = read;
+        }
+        size++;
+        
+        // the mate covers about as many positions as the read if not seen yet
+        int end = Math.max(read.getAlignmentEnd(), 
+                read.getMateAlignmentStart() + read.getReadLength());
+        pair.endKey = Math.max(pair.endKey, getKey(refIndex, end));
+        
+        while (size > maxReads) {
+            // evicted before the scan has passed it, its mates can no longer be found
+            Pair evicted = queue.peek();
+            evictedKey = Math.max(evictedKey, evicted.endKey);
+            evict(evicted);
         }
     }
     
+    /**
+     * Drops the pairs that no site at or after the given position can use.
+     */
+    public void evictBefore(int refIndex, int pos) {
+        long key = getKey(refIndex, pos);
+        Pair pair;
+        while ((pair = queue.peek()) != null && pair.endKey < key) {
+            evict(pair);
+        }
+    }
+    
+    private void evict(Pair pair) {
+        queue.poll();
+        SAMRecord read = pair.first;
+        if (read != null) {
+            size--;
+        }
+        if (pair.second != null) {
+            read = pair.second;
+            size--;
+        }
+        pairs.remove(read.getReadName());
+    }
+    
     public SAMRecord getMate(SAMRecord read) {
-        int n = read.getMateAlignmentStart();
-        if (n <= 0) {
+        if (!read.getReadPairedFlag() || read.getMateAlignmentStart() <= 0) {
             return null;
         }
-        n %= bucketNumber;
-        int i = bucketIds[n];
-        int k = 0;
-        SAMRecord mate = null;
-        for (;;) {
-            k++;
-            i--;
-            if (i < 0) {
-                i = bucketSize - 1;
-            }
-            
-            if (buckets[n][i] != null &&
-                buckets[n][i].getReadName().equals(read.getReadName()) &&
-                buckets[n][i].getAlignmentStart() != read.getAlignmentStart()) {
-                mate = buckets[n][i];
-                break;
-            }
-            if (i == bucketIds[n]) {
-                break;
-            }
+        Pair pair = pairs.get(read.getReadName());
+        if (pair == null) {
+            return null;
+        }
+        SAMRecord mate = read.getFirstOfPairFlag() ? pair.second : pair.first;
+        if (mate == null ||
+            mate.getAlignmentStart() != read.getMateAlignmentStart() ||
+            mate.getAlignmentStart() == read.getAlignmentStart()) {
+            return null;
         }
-        StatsManager.count("get_mate_iterations", k);
         return mate;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Returns whether the mate of the read would have been found by getMate 
+     * if it was in the input, so that a miss needs no query to the input file.
+     */
+    public boolean isMateCovered(SAMRecord read) {
+        if (!isIndexed(read)) {
+            return false;
+        }
+        long key = getKey(read.getMateReferenceIndex(), read.getMateAlignmentStart());
+        return key >= startKey && key > evictedKey && key < endKey;
+    }
+    
+    private boolean isIndexed(SAMRecord read) {
+        return read.getReadPairedFlag() && 
+               !read.getReadUnmappedFlag() && 
+               !read.getMateUnmappedFlag() &&
+               read.getMateAlignmentStart() > 0 &&
+               read.getMateReferenceIndex().equals(read.getReferenceIndex()) &&
+               Math.abs(read.getMateAlignmentStart() - read.getAlignmentStart()) <= 
+                   maxMateDistance;
+    }
+    
+    private static long getKey(long refIndex, long pos) {
+        return (refIndex << 32) + pos;
+    }
+    
+    private static class Pair {
+        private SAMRecord first;
+        private SAMRecord second;
+        private long endKey = -1;
+    }
+}
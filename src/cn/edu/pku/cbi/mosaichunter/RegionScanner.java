@@ -0,0 +1,309 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package cn.edu.pku.cbi.mosaichunter;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Random;
+
+import cn.edu.pku.cbi.mosaichunter.filter.ExcludeMask;
+import cn.edu.pku.cbi.mosaichunter.filter.Filter;
+import cn.edu.pku.cbi.mosaichunter.reference.ReferenceManager;
+import net.sf.samtools.AlignmentBlock;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+
+/**
+ * Builds the pileup of one region at a time and runs the in-process filter on
+ * every covered site. One instance is owned by a single thread: it keeps its own
+ * reader, reads cache, site objects and filter chain.
+ */
+public class RegionScanner {
+
+    public static final int INITIAL_MIN_DEPTH = 160;
+    public static final int INITIAL_WINDOW_SIZE = 1 << 12;
+
+    private final SAMFileReader input;
+    private final ReferenceManager referenceManager;
+    private final ReadsCache readsCache;
+    private final SiteObjectManager siteManager;
+    private final PileupWindow pileup = new PileupWindow(INITIAL_WINDOW_SIZE);
+    private final Filter inProcessFilter;
+    private final int maxDepth;
+    private final int minReadQuality;
+    private final int minMappingQuality;
+    private final boolean removeDuplicates;
+    private final int removeFlags;
+    private final boolean depthSampling;
+    private final boolean retainReads;
+    private final int initialMaxDepth;
+    private ExcludeMask[] excludeMasks = null;
+
+    private long depthSum = 0;
+    private long depthCount = 0;
+    private long processedReads = 0;
+
+    private boolean printProgress = false;
+    private long processedSites = 0;
+    private long totalSites = 0;
+    private long startTime = 0;
+
+    public RegionScanner(SAMFileReader input, ReferenceManager referenceManager,
+            ReadsCache readsCache, Filter inProcessFilter,
+            int maxDepth, int minReadQuality, int minMappingQuality,
+            boolean removeDuplicates, int removeFlags, boolean depthSampling,
+            boolean retainReads) {
+        this.input = input;
+        this.referenceManager = referenceManager;
+        this.readsCache = readsCache;
+        this.inProcessFilter = inProcessFilter;
+        this.maxDepth = maxDepth;
+        this.minReadQuality = minReadQuality;
+        this.minMappingQuality = minMappingQuality;
+        this.removeDuplicates = removeDuplicates;
+        this.removeFlags = removeFlags;
+        this.depthSampling = depthSampling;
+        this.retainReads = retainReads;
+        this.initialMaxDepth = Math.max(INITIAL_MIN_DEPTH, maxDepth);
+        this.siteManager = new SiteObjectManager(INITIAL_MIN_DEPTH, initialMaxDepth);
+    }
+
+    public void setProgress(long processedSites, long totalSites, long startTime) {
+        this.printProgress = true;
+        this.processedSites = processedSites;
+        this.totalSites = totalSites;
+        this.startTime = startTime;
+    }
+
+    // masked positions get no sites, so the filters never see them
+    public void setExcludeMasks(ExcludeMask[] excludeMasks) {
+        this.excludeMasks = excludeMasks == null || excludeMasks.length == 0 ? 
+                null : excludeMasks;
+    }
+    
+    public long getProcessedReads() {
+        return processedReads;
+    }
+
+    public void scan(Region region, Random random, Collection<Site> passedSites) {
+        long startPositionId;
+        long endPositionId;
+        SAMRecordIterator it = null;
+        if (region == null) {
+            it = input.iterator();
+            startPositionId = 0;
+            endPositionId = Long.MAX_VALUE;
+            readsCache.reset(-1, 0);
+        } else {
+            it = input.queryOverlapping(region.getChr(), region.getStart(), region.getEnd());
+            startPositionId = getPositionId(region.getChrId(), region.getStart());
+            endPositionId = getPositionId(region.getChrId(), region.getEnd());
+            readsCache.reset(
+                    input.getFileHeader().getSequenceIndex(region.getChr()), region.getStart());
+        }
+
+        String lastRefName = null;
+        int lastRefPos = 0;
+        long lastPositionId = 0;
+        SAMRecord lastRead = null;
+
+        int readsBufferSize = (1 << 17) - 1;
+        SAMRecord[] readsBuffer = new SAMRecord[readsBufferSize + 1];
+        int readsBatchSize = 1000;
+        long first = 0;
+        long last = 0;
+
+        while (it.hasNext() || first != last) {
+            while (last - first < readsBufferSize && it.hasNext()) {
+                SAMRecord read = it.next();
+                readsBuffer[(int) (last & readsBufferSize)] = read;
+                last++;
+                readsCache.cacheRead(read);
+            }
+            long end = Math.min(first + readsBatchSize, last);
+            while (first < end) {
+                SAMRecord read = readsBuffer[(int) (first & readsBufferSize)];
+                processedReads++;
+                first++;
+                if (printProgress && first % 1000000 == 0) {
+                    long startRefPos = 1;
+                    if (getRefId(lastPositionId) == getRefId(startPositionId)) {
+                        startRefPos = getRefPos(startPositionId);
+                    }
+                    long done = processedSites + lastRefPos - startRefPos;
+                    double progress = (double) done * 100 / (totalSites <= 0 ? 1 : totalSites);
+                    System.out.println(
+                            new Date() + " -" +
+                            " Time(s):" + (System.currentTimeMillis() - startTime) / 1000 +
+                            " Reads:" + processedReads +
+                            " Sites:" + done + "/" + totalSites +
+                            " Progress:" + String.format("%.2f", progress) + "%" +
+                            " " + lastRefName + ":" + lastRefPos);
+                }
+
+                // filter invalid reference
+                if (!read.getReferenceName().equals(lastRefName) &&
+                    referenceManager.getReferenceId(read.getReferenceName()) < 0) {
+                    continue;
+                }
+
+                if (read.getDuplicateReadFlag() && removeDuplicates) {
+                    continue;
+                }
+                if ((read.getFlags() & removeFlags) != 0) {
+                    continue;
+                }
+                if (read.getMappingQuality() < minMappingQuality) {
+                    continue;
+                }
+                String refName = read.getReferenceName();
+                int refId = referenceManager.getReferenceId(refName);
+                if (refId < 0) {
+                    continue;
+                }
+
+                // sites of the previous reference will not get any more reads
+                if (refId != pileup.getRefId()) {
+                    releaseSites(Long.MAX_VALUE, passedSites);
+                }
+
+                lastPositionId = getPositionId(refId, read.getAlignmentStart());
+                lastRefName = read.getReferenceName();
+                lastRefPos = read.getAlignmentStart();
+                lastRead = read;
+                byte[] bases = read.getReadBases();
+                byte[] quals = read.getBaseQualities();
+                if (bases.length != quals.length) {
+                    continue;
+                }
+                for (AlignmentBlock block : read.getAlignmentBlocks()) {
+                    int refPos = block.getReferenceStart();
+                    for (int i = 0; i < block.getLength(); ++i, ++refPos) {
+                        long posId = getPositionId(refId, refPos);
+                        if (posId < startPositionId || posId > endPositionId) {
+                            continue;
+                        }
+                        if (excludeMasks != null && isExcluded(refId, refPos)) {
+                            continue;
+                        }
+                        short basePos = (short) (block.getReadStart() + i - 1);
+                        if (basePos < 0 || basePos >= quals.length) {
+                            continue;
+                        }
+                        if (quals[basePos] < minReadQuality) {
+                            continue;
+                        }
+                        int baseId = MosaicHunterHelper.BASE_TO_ID[bases[basePos]];
+                        if (baseId < 0) {
+                            continue;
+                        }
+                        Site site = pileup.get(refId, refPos);
+                        if (site == null) {
+                            byte ref = referenceManager.getBaseWithCache(refId, refPos);
+                            if (ref == 'N') {
+                                continue;
+                            }
+
+                            int initialDepth = (int)(depthSum / (depthCount + 1) * 2);
+                            initialDepth = Math.max(initialDepth, INITIAL_MIN_DEPTH);
+                            initialDepth = Math.min(initialDepth, initialMaxDepth);
+                            site = siteManager.getSite(initialDepth);
+                            site.init(refName, refId, refPos, ref, 0, 0, null);
+                            pileup.put(refId, refPos, site);
+                        }
+                        site.increaceRealDepth();
+                        if (site.getDepth() < maxDepth) {
+                            if (site.getDepth() >= site.getMaxDepth()) {
+                                Site newSite = siteManager.getSite(site.getMaxDepth() + 1);
+                                newSite.copy(site);
+                                pileup.put(refId, refPos, newSite);
+                                siteManager.returnSite(site);
+                                site = newSite;
+                            }
+                            site.addRead(read, basePos);
+
+                        } else if (depthSampling && random.nextInt(site.getRealDepth()) < maxDepth) {
+                           int ii = random.nextInt(maxDepth);
+                           site.replaceRead(ii, read, basePos);
+                        }
+
+                    }
+                }
+            }
+
+            boolean hasMoreReads = it.hasNext() || first != last;
+            long releaseBefore = Long.MAX_VALUE;
+            if (hasMoreReads && getRefId(lastPositionId) == pileup.getRefId()) {
+                releaseBefore = getRefPos(lastPositionId);
+            }
+            releaseSites(releaseBefore, passedSites);
+            if (releaseBefore != Long.MAX_VALUE && lastRead != null) {
+                readsCache.evictBefore(lastRead.getReferenceIndex(), (int) releaseBefore);
+            }
+            //siteManager.printInfo();
+        }
+        it.close();
+        readsCache.clear();
+    }
+
+    private void releaseSites(long beforeRefPos, Collection<Site> passedSites) {
+        Site site;
+        while ((site = pileup.pollFirst(beforeRefPos)) != null) {
+            depthSum += site.getDepth();
+            depthCount++;
+            if (inProcessFilter.filter(site)) {
+                // post-process filters read the per-read summary or fetch the reads again
+                if (!retainReads) {
+                    site.releaseReads();
+                }
+                passedSites.add(site);
+            } else {
+                siteManager.returnSite(site);
+            }
+        }
+    }
+
+    private boolean isExcluded(int refId, int refPos) {
+        for (ExcludeMask mask : excludeMasks) {
+            if (mask.isExcluded(refId, refPos)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private long getPositionId(long refId, long refPos) {
+        return (refId << 40) + refPos;
+    }
+
+    private int getRefId(long posId) {
+        return (int) (posId >>> 40);
+    }
+
+    private int getRefPos(long posId) {
+        return (int) (posId & ((1L << 40) - 1));
+    }
+}
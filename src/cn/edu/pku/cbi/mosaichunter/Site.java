@@ -24,18 +24,23 @@
 
 package cn.edu.pku.cbi.mosaichunter;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Set;
 
+import net.sf.samtools.SAMReadGroupRecord;
 import net.sf.samtools.SAMRecord;
 
 public class Site {
 
     public static final String DEFAULT_ALLELE_ID_ORDER = "ACGT";
     
-    private static final Map<String, int[]> alleleIdCache = new HashMap<String, int[]>();
+    private static final Map<String, int[]> alleleIdCache = new ConcurrentHashMap<String, int[]>();
     private static final int[] defaultAlleleId;
     static {
         defaultAlleleId = getAlleleId(DEFAULT_ALLELE_ID_ORDER);
@@ -47,6 +52,16 @@ public class Site {
     private final byte[] bases;
     private final byte[] baseQualities;
     private final short[] basePos;
+    
+    // per-read summary, kept after the reads are released
+    private final short[] flags;
+    private final byte[] mappingQualities;
+    private final int[] alignmentStarts;
+    private final int[] mateReferenceIndexes;
+    private final int[] mateAlignmentStarts;
+    private final String[] readNames;
+    private final String[] samples;
+    private boolean readsReleased = false;
     private final Map<String, Object[]> metadata = new HashMap<String, Object[]>(); 
     private final Set<String> passedFilters = new HashSet<String>();
     private final int[] alleleCount = new int[4];
@@ -83,6 +98,13 @@ public class Site {
         baseQualities = new byte[maxDepth];
         basePos = new short[maxDepth];
         reads = new SAMRecord[maxDepth];
+        flags = new short[maxDepth];
+        mappingQualities = new byte[maxDepth];
+        alignmentStarts = new int[maxDepth];
+        mateReferenceIndexes = new int[maxDepth];
+        mateAlignmentStarts = new int[maxDepth];
+        readNames = new String[maxDepth];
+        samples = new String[maxDepth];
     }
     
     public Site(String refName, int refId, long refPos, byte ref, int depth, int realDepth,
@@ -98,7 +120,18 @@ public class Site {
         this.baseQualities = baseQualities;
         this.reads = reads;
         this.basePos = basePos;
+        int n = reads.length;
+        flags = new short[n];
+        mappingQualities = new byte[n];
+        alignmentStarts = new int[n];
+        mateReferenceIndexes = new int[n];
+        mateAlignmentStarts = new int[n];
+        readNames = new String[n];
+        samples = new String[n];
         init(refName, refId, refPos, ref, depth, realDepth, alleleIdOrder);
+        for (int i = 0; i < depth; ++i) {
+            setRead(i, reads[i], basePos[i]);
+        }
     }
     
     private static int[] getAlleleId(String alleleIdOrder) {
@@ -130,6 +163,7 @@ public class Site {
         }
         metadata.clear();
         passedFilters.clear();
+        readsReleased = false;
 		
         alleleCount[0] = 0;
         alleleCount[1] = 0;
@@ -142,10 +176,18 @@ public class Site {
     
     public void copy(Site that) {
         init(that.refName, that.refId, that.refPos, that.ref, that.depth, that.realDepth, that.alleleIdOrder);
-        //System.arraycopy(that.bases, 0, bases, 0, depth);
-        //System.arraycopy(that.baseQualities, 0, baseQualities, 0, depth);
+        System.arraycopy(that.bases, 0, bases, 0, depth);
+        System.arraycopy(that.baseQualities, 0, baseQualities, 0, depth);
         System.arraycopy(that.reads, 0, reads, 0, depth);
         System.arraycopy(that.basePos, 0, basePos, 0, depth);
+        System.arraycopy(that.flags, 0, flags, 0, depth);
+        System.arraycopy(that.mappingQualities, 0, mappingQualities, 0, depth);
+        System.arraycopy(that.alignmentStarts, 0, alignmentStarts, 0, depth);
+        System.arraycopy(that.mateReferenceIndexes, 0, mateReferenceIndexes, 0, depth);
+        System.arraycopy(that.mateAlignmentStarts, 0, mateAlignmentStarts, 0, depth);
+        System.arraycopy(that.readNames, 0, readNames, 0, depth);
+        System.arraycopy(that.samples, 0, samples, 0, depth);
+        readsReleased = that.readsReleased;
         metadata.putAll(that.metadata);
         passedFilters.addAll(that.passedFilters);
     }
@@ -159,24 +201,45 @@ public class Site {
             return;
         }
         
-        reads[depth] = read;
-        basePos[depth] = pos;
-        //bases[depth] = base;
-        //baseQualities[depth] = baseQ;   
+        setRead(depth, read, pos);
         depth++;
         majorAllele = -1;
 		majorReadGroupCount = -1;	
     }
     
     public void replaceRead(int i, SAMRecord read, short pos) {
-        //bases[i] = base;
-        //baseQualities[i] = baseQ;
-        reads[i] = read;
-        basePos[i] = pos;
+        setRead(i, read, pos);
         majorAllele = -1;
 		majorReadGroupCount = -1;
     }
     
+    private void setRead(int i, SAMRecord read, short pos) {
+        reads[i] = read;
+        basePos[i] = pos;
+        bases[i] = read.getReadBases()[pos];
+        baseQualities[i] = read.getBaseQualities()[pos];
+        flags[i] = (short) read.getFlags();
+        mappingQualities[i] = (byte) read.getMappingQuality();
+        alignmentStarts[i] = read.getAlignmentStart();
+        mateReferenceIndexes[i] = read.getMateReferenceIndex();
+        mateAlignmentStarts[i] = read.getMateAlignmentStart();
+        readNames[i] = read.getReadName();
+        SAMReadGroupRecord readGroup = read.getReadGroup();
+        samples[i] = readGroup == null ? null : readGroup.getSample();
+    }
+    
+    // drops the SAMRecord references, the per-read summary is kept
+    public void releaseReads() {
+        for (int i = 0; i < depth; ++i) {
+            reads[i] = null;
+        }
+        readsReleased = true;
+    }
+    
+    public boolean hasReads() {
+        return !readsReleased;
+    }
+    
     public int getMaxDepth() {
         return maxDepth;
     }
@@ -185,6 +248,10 @@ public class Site {
         return refName;
     }
     
+    public int getRefId() {
+        return refId;
+    }
+    
     public long getRefPos() {
         return refPos;
     }
@@ -223,6 +290,38 @@ public class Site {
         return basePos;
     }
     
+    public int getFlags(int i) {
+        return flags[i] & 0xFFFF;
+    }
+    
+    public boolean isNegativeStrand(int i) {
+        return (flags[i] & 0x10) != 0;
+    }
+    
+    public int getMappingQuality(int i) {
+        return mappingQualities[i] & 0xFF;
+    }
+    
+    public int getAlignmentStart(int i) {
+        return alignmentStarts[i];
+    }
+    
+    public int getMateReferenceIndex(int i) {
+        return mateReferenceIndexes[i];
+    }
+    
+    public int getMateAlignmentStart(int i) {
+        return mateAlignmentStarts[i];
+    }
+    
+    public String getReadName(int i) {
+        return readNames[i];
+    }
+    
+    public String getSample(int i) {
+        return samples[i];
+    }
+    
     public Object[] getMetadata(String name) {
         return metadata.get(name);
     }
@@ -356,11 +455,8 @@ public class Site {
 		negativeAlleleCount = 0;
 		
 		for (int i = 0; i < depth; ++i) { 
-			bases[i] = reads[i].getReadBases()[basePos[i]];
-			baseQualities[i] = reads[i].getBaseQualities()[basePos[i]];
-	
 			alleleCount[alleleId[bases[i]]]++;
-			if (reads[i].getReadNegativeStrandFlag()) {
+			if (isNegativeStrand(i)) {
 				negativeAlleleCounts[alleleId[bases[i]]]++;
 				negativeAlleleCount++;
 			} else {
@@ -407,13 +503,13 @@ public class Site {
 		
         for (int i = 0; i < depth; ++i) { 
 			if ((char) bases[i] == 'A') {
-				readGroupA.put(reads[i].getReadGroup().getSample(),null);
+				readGroupA.put(samples[i],null);
 			} else if ((char) bases[i] == 'C') {
-				readGroupC.put(reads[i].getReadGroup().getSample(),null);
+				readGroupC.put(samples[i],null);
 			} else if ((char) bases[i] == 'G') {
-				readGroupG.put(reads[i].getReadGroup().getSample(),null);
+				readGroupG.put(samples[i],null);
 			} else if ((char) bases[i] == 'T') {
-				readGroupT.put(reads[i].getReadGroup().getSample(),null);
+				readGroupT.put(samples[i],null);
 			}
         }
 		
@@ -441,5 +537,83 @@ public class Site {
     public Set<String> getPassedFilters() {
         return passedFilters;
     }
+    
+    // saves the site without its reads, the per-read summary is enough to fetch them again
+    public void write(ObjectOutput out) throws IOException {
+        out.writeUTF(refName);
+        out.writeInt(refId);
+        out.writeLong(refPos);
+        out.writeByte(ref);
+        out.writeInt(depth);
+        out.writeInt(realDepth);
+        out.writeUTF(alleleIdOrder);
+        for (int i = 0; i < depth; ++i) {
+            out.writeByte(bases[i]);
+            out.writeByte(baseQualities[i]);
+            out.writeShort(basePos[i]);
+            out.writeShort(flags[i]);
+            out.writeByte(mappingQualities[i]);
+            out.writeInt(alignmentStarts[i]);
+            out.writeInt(mateReferenceIndexes[i]);
+            out.writeInt(mateAlignmentStarts[i]);
+            writeString(out, readNames[i]);
+            writeString(out, samples[i]);
+        }
+        out.writeInt(metadata.size());
+        for (Map.Entry<String, Object[]> entry : metadata.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeObject(entry.getValue());
+        }
+        out.writeInt(passedFilters.size());
+        for (String filter : passedFilters) {
+            out.writeUTF(filter);
+        }
+    }
+    
+    public static Site read(ObjectInput in) throws IOException, ClassNotFoundException {
+        String refName = in.readUTF();
+        int refId = in.readInt();
+        long refPos = in.readLong();
+        byte ref = in.readByte();
+        int depth = in.readInt();
+        int realDepth = in.readInt();
+        String alleleIdOrder = in.readUTF();
+        Site site = new Site(Math.max(depth, 1));
+        site.init(refName, refId, refPos, ref, depth, realDepth, alleleIdOrder);
+        for (int i = 0; i < depth; ++i) {
+            site.bases[i] = in.readByte();
+            site.baseQualities[i] = in.readByte();
+            site.basePos[i] = in.readShort();
+            site.flags[i] = in.readShort();
+            site.mappingQualities[i] = in.readByte();
+            site.alignmentStarts[i] = in.readInt();
+            site.mateReferenceIndexes[i] = in.readInt();
+            site.mateAlignmentStarts[i] = in.readInt();
+            site.readNames[i] = readString(in);
+            site.samples[i] = readString(in);
+        }
+        site.readsReleased = true;
+        int n = in.readInt();
+        for (int i = 0; i < n; ++i) {
+            String name = in.readUTF();
+            site.metadata.put(name, (Object[]) in.readObject());
+        }
+        n = in.readInt();
+        for (int i = 0; i < n; ++i) {
+            site.passedFilters.add(in.readUTF());
+        }
+        return site;
+    }
+    
+    private static void writeString(ObjectOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+    
+    private static String readString(ObjectInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
 
 }
@@ -37,6 +37,14 @@ public class StatsManager {
 
     public static final DecimalFormat format = new DecimalFormat("0.000");
 
+    private static final ThreadLocal<Map<String, Long>> lastStart = 
+            new ThreadLocal<Map<String, Long>>() {
+        @Override
+        protected Map<String, Long> initialValue() {
+            return new HashMap<String, Long>();
+        }
+    };
+
     private static final boolean enableTimer;
     private static final boolean enableCounter;
     
@@ -58,35 +66,43 @@ public class StatsManager {
         if (!enableCounter) {
             return;
         }
-        Counter c = getCounter(name);
-        c.total += n;
-        c.cnt++;
+        synchronized (counters) {
+            Counter c = getCounter(name);
+            c.total += n;
+            c.cnt++;
+        }
     }
     public static void start(String name) {
         if (!enableTimer) {
             return;
         }
-        Walltime wt = getWalltime(name);
-        if (wt.last > 0) {
-            wt.error++;
+        Map<String, Long> last = lastStart.get();
+        Long t = last.get(name);
+        if (t != null && t > 0) {
+            synchronized (walltime) {
+                getWalltime(name).error++;
+            }
             return;   
         }
-        wt.last = System.nanoTime();
+        last.put(name, System.nanoTime());
     }
     
     public static void end(String name) {
         if (!enableTimer) {
             return;
         }
-        Walltime wt = getWalltime(name);
-        if (wt.last <= 0) {
-            wt.error++;
-            return;
-            
+        Map<String, Long> last = lastStart.get();
+        Long t = last.get(name);
+        synchronized (walltime) {
+            Walltime wt = getWalltime(name);
+            if (t == null || t <= 0) {
+                wt.error++;
+                return;
+            }
+            wt.total += System.nanoTime() - t;
+            wt.cnt++;
         }
-        wt.total += System.nanoTime() - wt.last;
-        wt.cnt++;
-        wt.last = 0;
+        last.put(name, 0L);
     }
     
     public static void printStats() {
@@ -148,7 +164,6 @@ public class StatsManager {
     }
     
     private static class Walltime {
-        private long last;
         private long total;
         private long cnt;
         private long error;
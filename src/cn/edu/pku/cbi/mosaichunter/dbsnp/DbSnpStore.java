@@ -0,0 +1,521 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.dbsnp;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary copy of a dbSNP allele frequency TSV (chr, pos, id, ref, alts, af). 
+ * Records are sorted by position and packed into deflated blocks of 
+ * BLOCK_RECORDS records; an index at the end of the file holds the first 
+ * position and the offset of every block per chromosome. Lookups binary search 
+ * the index, then the block, which is decoded once and kept in a small LRU 
+ * cache, so they can come in any order and from any thread.
+ */
+public class DbSnpStore {
+
+    public static final long MAGIC = 0x4d48534e50303031L; // MHSNP001
+    public static final int BLOCK_RECORDS = 4096;
+    public static final int DEFAULT_CACHED_BLOCKS = 64;
+    
+    private static final String BASES = "ACGT";
+    
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long sourceLength;
+    private final long sourceLastModified;
+    private final Map<String, Chromosome> chromosomes = new HashMap<String, Chromosome>();
+    private final Map<Integer, Block> cache;
+    
+    private DbSnpStore(File storeFile, final int cachedBlocks) throws IOException {
+        file = new RandomAccessFile(storeFile, "r");
+        channel = file.getChannel();
+        cache = new LinkedHashMap<Integer, Block>(cachedBlocks * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+                return size() > cachedBlocks;
+            }
+        };
+        
+        try {
+            long length = file.length();
+            if (length < 24) {
+                throw new IOException("invalid dbSNP store: " + storeFile);
+            }
+            file.seek(0);
+            long magic = file.readLong();
+            file.seek(length - 16);
+            long indexOffset = file.readLong();
+            if (magic != MAGIC || file.readLong() != MAGIC) {
+                throw new IOException("invalid dbSNP store: " + storeFile);
+            }
+            file.seek(indexOffset);
+            sourceLength = file.readLong();
+            sourceLastModified = file.readLong();
+            int chrCount = file.readInt();
+            int blockId = 0;
+            for (int i = 0; i < chrCount; ++i) {
+                String name = file.readUTF();
+                int blockCount = file.readInt();
+                Chromosome chr = new Chromosome(blockId, blockCount);
+                for (int j = 0; j < blockCount; ++j) {
+                    chr.firstPositions[j] = file.readLong();
+                    chr.offsets[j] = file.readLong();
+                    chr.lengths[j] = file.readInt();
+                    chr.counts[j] = file.readInt();
+                }
+                blockId += blockCount;
+                chromosomes.put(name, chr);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+    
+    public static DbSnpStore open(File storeFile) throws IOException {
+        return new DbSnpStore(storeFile, DEFAULT_CACHED_BLOCKS);
+    }
+    
+    // opens the store converted from the TSV file, converting it first if the 
+    // store is missing or was built from another version of the TSV file
+    public static synchronized DbSnpStore open(File tsvFile, File storeFile) throws IOException {
+        if (storeFile.isFile()) {
+            DbSnpStore store = null;
+            try {
+                store = open(storeFile);
+            } catch (IOException e) {
+                store = null;
+            }
+            if (store != null) {
+                if (store.sourceLength == tsvFile.length() && 
+                    store.sourceLastModified == tsvFile.lastModified()) {
+                    return store;
+                }
+                store.close();
+            }
+        }
+        convert(tsvFile, storeFile);
+        return open(storeFile);
+    }
+    
+    public static boolean isStore(File file) throws IOException {
+        if (!file.isFile() || file.length() < 8) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readLong() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+    
+    public void close() throws IOException {
+        file.close();
+    }
+    
+    // returns the allele frequencies of A, C, G and T, or null if the position is 
+    // not in dbSNP
+    public double[] getAF(String chrName, long pos, double novelAF, double unknownAF) {
+        Chromosome chr = chromosomes.get(chrName);
+        if (chr == null) {
+            return null;
+        }
+        int blockIndex = floor(chr.firstPositions, chr.firstPositions.length, pos);
+        if (blockIndex < 0) {
+            return null;
+        }
+        Block block;
+        try {
+            block = getBlock(chr, blockIndex);
+        } catch (IOException e) {
+            // a known site must not fall back to the prior of novel alleles
+            throw new IllegalStateException("failed to read dbSNP store", e);
+        }
+        int i = floor(block.positions, block.positions.length, pos);
+        if (i < 0 || block.positions[i] != pos) {
+            return null;
+        }
+        
+        double rate = block.rates[i];
+        int alleles = block.alleles[i];
+        double[] af = new double[] { novelAF, novelAF, novelAF, novelAF };
+        af[alleles & 3] = rate > 0 ? 1 - rate : 1;
+        for (int j = 0; j < 4; ++j) {
+            if ((alleles & (4 << j)) != 0) {
+                af[j] = rate > 0 ? rate : unknownAF;
+            }
+        }
+        return af;
+    }
+    
+    // index of the last value <= key, or -1
+    private static int floor(long[] values, int n, long key) {
+        int low = 0;
+        int high = n - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+    
+    private Block getBlock(Chromosome chr, int blockIndex) throws IOException {
+        Integer key = chr.firstBlockId + blockIndex;
+        synchronized (cache) {
+            Block block = cache.get(key);
+            if (block != null) {
+                return block;
+            }
+        }
+        Block block = readBlock(
+                chr.offsets[blockIndex], chr.lengths[blockIndex], chr.counts[blockIndex]);
+        synchronized (cache) {
+            cache.put(key, block);
+        }
+        return block;
+    }
+    
+    private Block readBlock(long offset, int length, int count) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(length);
+        while (compressed.hasRemaining()) {
+            if (channel.read(compressed, offset + compressed.position()) < 0) {
+                throw new IOException("unexpected end of dbSNP store");
+            }
+        }
+        // at most 10 bytes of position delta, 1 byte of alleles and 8 bytes of rate
+        byte[] data = new byte[count * 19];
+        int n;
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            n = 0;
+            while (!inflater.finished() && n < data.length) {
+                int k = inflater.inflate(data, n, data.length - n);
+                if (k == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += k;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupted dbSNP store block at " + offset, e);
+        } finally {
+            inflater.end();
+        }
+        
+        Block block = new Block(count);
+        int p = 0;
+        long pos = 0;
+        for (int i = 0; i < count; ++i) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[p++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            pos += delta;
+            block.positions[i] = pos;
+            block.alleles[i] = data[p++];
+            long bits = 0;
+            for (int j = 0; j < 8; ++j) {
+                bits = (bits << 8) | (data[p++] & 0xFF);
+            }
+            block.rates[i] = Double.longBitsToDouble(bits);
+        }
+        if (p != n) {
+            throw new IOException("corrupted dbSNP store block at " + offset);
+        }
+        return block;
+    }
+    
+    /**
+     * Converts a dbSNP TSV file sorted by position within each chromosome. As in 
+     * the sequential reader this replaces, only the first line of a position 
+     * counts, and lines without a single-base ref, a single-base alt or a 
+     * numeric af are left out.
+     */
+    public static void convert(File tsvFile, File storeFile) throws IOException {
+        File tmpFile = new File(storeFile.getPath() + ".tmp");
+        BufferedReader reader = new BufferedReader(new FileReader(tsvFile), 1 << 20);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20));
+        try {
+            BlockWriter writer = new BlockWriter(out);
+            String[] tokens = new String[7];
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int n = split(line, tokens);
+                if (n < 2) {
+                    throw new IOException("invalid dbSNP line: " + line);
+                }
+                long pos = Long.parseLong(tokens[1]);
+                if (!writer.nextPosition(tokens[0], pos)) {
+                    continue;
+                }
+                int alleles = n == 6 ? parseAlleles(tokens[3], tokens[4]) : -1;
+                if (alleles < 0) {
+                    continue;
+                }
+                double rate;
+                try {
+                    rate = Double.parseDouble(tokens[5]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                writer.add(pos, alleles, rate);
+            }
+            writer.finish(tsvFile);
+        } finally {
+            out.close();
+            reader.close();
+        }
+        if (!tmpFile.renameTo(storeFile)) {
+            storeFile.delete();
+            if (!tmpFile.renameTo(storeFile)) {
+                tmpFile.delete();
+                throw new IOException("cannot rename " + tmpFile + " to " + storeFile);
+            }
+        }
+    }
+    
+    // splits by tab into at most tokens.length tokens and returns the number of 
+    // tokens String.split would return, which does not count trailing empty ones
+    private static int split(String line, String[] tokens) {
+        int n = 0;
+        int nonEmpty = 0;
+        int start = 0;
+        while (n < tokens.length) {
+            int end = line.indexOf('\t', start);
+            if (end < 0) {
+                end = line.length();
+            }
+            tokens[n++] = line.substring(start, end);
+            if (end > start) {
+                nonEmpty = n;
+            }
+            if (end == line.length()) {
+                return nonEmpty;
+            }
+            start = end + 1;
+        }
+        for (int i = start; i < line.length(); ++i) {
+            if (line.charAt(i) != '\t') {
+                return tokens.length + 1;
+            }
+        }
+        return nonEmpty;
+    }
+    
+    // ref base id in bits 0-1, one bit per alt base from bit 2, or -1
+    private static int parseAlleles(String ref, String alts) {
+        if (ref.length() != 1 || BASES.indexOf(ref.charAt(0)) < 0) {
+            return -1;
+        }
+        int alleles = BASES.indexOf(ref.charAt(0));
+        int altCount = 0;
+        int start = 0;
+        while (start <= alts.length()) {
+            int end = alts.indexOf(',', start);
+            if (end < 0) {
+                end = alts.length();
+            }
+            if (end - start == 1 && BASES.indexOf(alts.charAt(start)) >= 0) {
+                alleles |= 4 << BASES.indexOf(alts.charAt(start));
+                altCount++;
+            }
+            start = end + 1;
+        }
+        return altCount == 0 ? -1 : alleles;
+    }
+    
+    private static class Chromosome {
+        private final int firstBlockId;
+        private final long[] firstPositions;
+        private final long[] offsets;
+        private final int[] lengths;
+        private final int[] counts;
+        
+        public Chromosome(int firstBlockId, int blockCount) {
+            this.firstBlockId = firstBlockId;
+            this.firstPositions = new long[blockCount];
+            this.offsets = new long[blockCount];
+            this.lengths = new int[blockCount];
+            this.counts = new int[blockCount];
+        }
+    }
+    
+    private static class Block {
+        private final long[] positions;
+        private final byte[] alleles;
+        private final double[] rates;
+        
+        public Block(int count) {
+            positions = new long[count];
+            alleles = new byte[count];
+            rates = new double[count];
+        }
+    }
+    
+    private static class BlockWriter {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private final DataOutputStream indexOut = new DataOutputStream(index);
+        private final List<String> chrNames = new ArrayList<String>();
+        private final List<Integer> blockCounts = new ArrayList<Integer>();
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        private final Deflater deflater = new Deflater();
+        private final byte[] buffer = new byte[1 << 16];
+        
+        private String chrName = null;
+        private long lastPos = -1;
+        private long blockFirstPos = 0;
+        private long blockLastPos = 0;
+        private int blockRecords = 0;
+        private long written = 0;
+        
+        public BlockWriter(DataOutputStream out) throws IOException {
+            this.out = out;
+            out.writeLong(MAGIC);
+            written = 8;
+        }
+        
+        // returns false if the position was seen already
+        public boolean nextPosition(String name, long pos) throws IOException {
+            if (!name.equals(chrName)) {
+                flushBlock();
+                if (chrNames.contains(name)) {
+                    throw new IOException("dbSNP file is not sorted: " + name + " appears twice");
+                }
+                chrName = name;
+                chrNames.add(name);
+                blockCounts.add(0);
+                lastPos = -1;
+            } else if (pos < lastPos) {
+                throw new IOException("dbSNP file is not sorted: " + name + ":" + pos);
+            } else if (pos == lastPos) {
+                return false;
+            }
+            lastPos = pos;
+            return true;
+        }
+        
+        public void add(long pos, int alleles, double rate) throws IOException {
+            if (blockRecords == 0) {
+                blockFirstPos = pos;
+                blockLastPos = 0;
+            }
+            long delta = pos - blockLastPos;
+            while ((delta & ~0x7FL) != 0) {
+                block.write((int) ((delta & 0x7F) | 0x80));
+                delta >>>= 7;
+            }
+            block.write((int) delta);
+            block.write(alleles);
+            long bits = Double.doubleToRawLongBits(rate);
+            for (int i = 56; i >= 0; i -= 8) {
+                block.write((int) (bits >>> i));
+            }
+            blockLastPos = pos;
+            if (++blockRecords == BLOCK_RECORDS) {
+                flushBlock();
+            }
+        }
+        
+        private void flushBlock() throws IOException {
+            if (blockRecords == 0) {
+                return;
+            }
+            long offset = written;
+            deflater.reset();
+            deflater.setInput(block.toByteArray());
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+                written += n;
+            }
+            indexOut.writeLong(blockFirstPos);
+            indexOut.writeLong(offset);
+            indexOut.writeInt((int) (written - offset));
+            indexOut.writeInt(blockRecords);
+            int last = blockCounts.size() - 1;
+            blockCounts.set(last, blockCounts.get(last) + 1);
+            block.reset();
+            blockRecords = 0;
+        }
+        
+        public void finish(File tsvFile) throws IOException {
+            flushBlock();
+            deflater.end();
+            long indexOffset = written;
+            out.writeLong(tsvFile.length());
+            out.writeLong(tsvFile.lastModified());
+            out.writeInt(chrNames.size());
+            byte[] blocks = index.toByteArray();
+            int p = 0;
+            for (int i = 0; i < chrNames.size(); ++i) {
+                out.writeUTF(chrNames.get(i));
+                out.writeInt(blockCounts.get(i));
+                int n = blockCounts.get(i) * 24;
+                out.write(blocks, p, n);
+                p += n;
+            }
+            out.writeLong(indexOffset);
+            out.writeLong(MAGIC);
+        }
+    }
+}
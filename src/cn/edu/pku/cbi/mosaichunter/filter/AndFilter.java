@@ -24,7 +24,11 @@
 
 package cn.edu.pku.cbi.mosaichunter.filter;
 
-import java.util.List;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 import cn.edu.pku.cbi.mosaichunter.MosaicHunterContext;
 import cn.edu.pku.cbi.mosaichunter.Site;
@@ -67,6 +71,57 @@ public class AndFilter extends BaseFilter {
         for (Filter filter : filters) {
             filter.close();
         }
+        super.close();
+    }
+    
+    @Override
+    public void setOutputDir(String outputDir) throws IOException {
+        super.setOutputDir(outputDir);
+        for (Filter filter : filters) {
+            filter.setOutputDir(outputDir);
+        }
+    }
+    
+    @Override
+    public void mergeStats(Filter filter) {
+        super.mergeStats(filter);
+        if (filter instanceof AndFilter) {
+            Filter[] others = ((AndFilter) filter).getFilters();
+            for (int i = 0; i < filters.length && i < others.length; ++i) {
+                filters[i].mergeStats(others[i]);
+            }
+        }
+    }
+    
+    @Override
+    public void clearStats() {
+        super.clearStats();
+        for (Filter filter : filters) {
+            filter.clearStats();
+        }
+    }
+    
+    @Override
+    public void setRandomSeed(long seed) {
+        for (Filter filter : filters) {
+            filter.setRandomSeed(seed);
+        }
+    }
+    
+    @Override
+    public void writeState(DataOutput out) throws IOException {
+        super.writeState(out);
+        for (Filter filter : filters) {
+            filter.writeState(out);
+        }
+    }
+    
+    @Override
+    public void readState(DataInput in, boolean merge) throws IOException {
+        super.readState(in, merge);
+        for (Filter filter : filters) {
+            filter.readState(in, merge);
+        }
     }
     
     public Filter[] getFilters() {
@@ -94,10 +149,58 @@ public class AndFilter extends BaseFilter {
     }
     
     @Override
-    public List<Site> doFilter(List<Site> sites) {
-        for (Filter filter : filters) {
-            sites = filter.filter(sites);
+    public SiteStream open(SiteStream next) {
+        ChainStream chain = new ChainStream(next);
+        SiteStream stream = chain.new Tail();
+        for (int i = filters.length - 1; i >= 0; --i) {
+            stream = filters[i].open(stream);
         }
-        return sites;
-    }    
+        chain.head = stream;
+        return chain;
+    }
+    
+    private class ChainStream extends FilterStream {
+        
+        private SiteStream head;
+        // sites not through the chain yet, only kept to output the rejected ones
+        private final Queue<Site> pending = isOutputFiltered() ? new ArrayDeque<Site>() : null;
+        
+        public ChainStream(SiteStream next) {
+            super(next);
+        }
+        
+        @Override
+        protected void process(Site site) {
+            if (pending != null) {
+                pending.add(site);
+            }
+            head.put(site);
+        }
+        
+        @Override
+        protected void flush() {
+            head.end();
+            if (pending != null) {
+                while (!pending.isEmpty()) {
+                    reject(pending.poll());
+                }
+            }
+        }
+        
+        private class Tail implements SiteStream {
+            
+            public void put(Site site) {
+                if (pending != null) {
+                    while (pending.peek() != site) {
+                        reject(pending.poll());
+                    }
+                    pending.poll();
+                }
+                pass(site);
+            }
+            
+            public void end() {
+            }
+        }
+    }
 }
@@ -24,33 +24,42 @@
 
 package cn.edu.pku.cbi.mosaichunter.filter;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 import cn.edu.pku.cbi.mosaichunter.MosaicHunterContext;
+import cn.edu.pku.cbi.mosaichunter.MosaicHunterHelper;
 import cn.edu.pku.cbi.mosaichunter.Site;
 import cn.edu.pku.cbi.mosaichunter.StatsManager;
 import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
+import cn.edu.pku.cbi.mosaichunter.output.AsyncFileWriter;
+import cn.edu.pku.cbi.mosaichunter.output.OutputManager;
+import cn.edu.pku.cbi.mosaichunter.output.RecordEncoder;
+import net.sf.samtools.SAMRecord;
 
 abstract public class BaseFilter implements Filter {    
     
     private final String name;
     private final boolean outputFiltered;  
     private final boolean outputPassed;
-    private final String outputDir;
-    private FileWriter filteredWriter = null;
-    private FileWriter passedWriter = null;
+    private String outputDir;
+    private AsyncFileWriter filteredWriter = null;
+    private AsyncFileWriter passedWriter = null;
     private long totalSites = 0;
     private long passedSites = 0;
+    private long resumeFilteredSize = -1;
+    private long resumePassedSize = -1;
     private MosaicHunterContext context;
     
     public static final DecimalFormat format = new DecimalFormat("0.00000");
+    private final DecimalFormat decimalFormat = new DecimalFormat("0.00000");
+    private final RecordEncoder encoder = new RecordEncoder(decimalFormat);
     
     public BaseFilter(String name) {
         this.name = name;
@@ -81,24 +90,107 @@ abstract public class BaseFilter implements Filter {
     
     public void init(MosaicHunterContext context) throws Exception {
         this.context = context;
+        openWriters();
+    }
+    
+    public void setOutputDir(String outputDir) throws IOException {
+        closeWriters();
+        this.outputDir = outputDir;
+        openWriters();
+    }
+    
+    public void mergeStats(Filter filter) {
+        if (filter instanceof BaseFilter) {
+            totalSites += ((BaseFilter) filter).getTotalSites();
+            passedSites += ((BaseFilter) filter).getPassedSites();
+        }
+    }
+    
+    public void clearStats() {
+        totalSites = 0;
+        passedSites = 0;
+    }
+    
+    public void setRandomSeed(long seed) {
+    }
+    
+    public void writeState(DataOutput out) throws IOException {
+        if (filteredWriter != null) {
+            filteredWriter.flush();
+        }
+        if (passedWriter != null) {
+            passedWriter.flush();
+        }
+        out.writeUTF(name);
+        out.writeLong(totalSites);
+        out.writeLong(passedSites);
+        out.writeLong(filteredWriter == null ? -1 : getFilteredFile().length());
+        out.writeLong(passedWriter == null ? -1 : getPassedFile().length());
+    }
+    
+    public void readState(DataInput in, boolean merge) throws IOException {
+        String stateName = in.readUTF();
+        if (!stateName.equals(name)) {
+            throw new IOException("state of filter " + stateName + " does not match " + name);
+        }
+        long total = in.readLong();
+        long passed = in.readLong();
+        long filteredSize = in.readLong();
+        long passedSize = in.readLong();
+        if (merge) {
+            totalSites += total;
+            passedSites += passed;
+            return;
+        }
+        totalSites = total;
+        passedSites = passed;
+        resumeFilteredSize = filteredSize;
+        resumePassedSize = passedSize;
+        if (filteredWriter != null || passedWriter != null) {
+            closeWriters();
+            openWriters();
+        }
+    }
+    
+    private File getFilteredFile() {
+        return new File(outputDir, name + ".filtered.tsv" + OutputManager.getFileSuffix());
+    }
+    
+    private File getPassedFile() {
+        return new File(outputDir, name + ".passed.tsv" + OutputManager.getFileSuffix());
+    }
+    
+    private void openWriters() throws IOException {
+        if (outputDir == null) {
+            return;
+        }
         if (outputFiltered) {
             makeOutputDir();
-            filteredWriter = new FileWriter(new File(outputDir, name + ".filtered.tsv"));
+            filteredWriter = openWriter(getFilteredFile(), resumeFilteredSize);
         }
         if (outputPassed) {
             makeOutputDir();
-            passedWriter = new FileWriter(new File(outputDir, name + ".passed.tsv"));
+            passedWriter = openWriter(getPassedFile(), resumePassedSize);
         }   
+        resumeFilteredSize = -1;
+        resumePassedSize = -1;
     }
     
-    private void makeOutputDir() {
-        File dir = new File(outputDir);
-        if (!dir.exists()) {
-            dir.mkdirs();
+    private static AsyncFileWriter openWriter(File file, long resumeSize) throws IOException {
+        if (resumeSize < 0 || !file.exists()) {
+            return OutputManager.open(file, false);
         }
+        // drop what was written after the checkpoint
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(Math.min(resumeSize, raf.length()));
+        } finally {
+            raf.close();
+        }
+        return OutputManager.open(file, true);
     }
     
-    public void close() throws Exception {
+    private void closeWriters() throws IOException {
         if (filteredWriter != null) {
             filteredWriter.close();
             filteredWriter = null;
@@ -109,6 +201,24 @@ abstract public class BaseFilter implements Filter {
         }
     }
     
+    private void makeOutputDir() {
+        File dir = new File(outputDir);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+    }
+    
+    public void close() throws Exception {
+        closeWriters();
+    }
+    
+    protected SAMRecord[] getReads(Site site) {
+        if (site.hasReads()) {
+            return site.getReads();
+        }
+        return MosaicHunterHelper.fetchReads(context.getSAMFileReader(), site);
+    }
+    
     public String getOutputDir() {
         return outputDir;
     }
@@ -128,27 +238,30 @@ abstract public class BaseFilter implements Filter {
     }
     
     public List<Site> filter(List<Site> sites) {
-        StatsManager.start(name);
-        List<Site> results = doFilter(sites);
-        totalSites += sites.size();
-        passedSites += results.size();
-        if (passedWriter != null || filteredWriter != null) {
-            Set<Site> passed = new HashSet<Site>();
-            for (Site site : results) {
-                output(site, true);
-                passed.add(site);
-                site.getPassedFilters().add(getName());
+        final List<Site> results = new ArrayList<Site>();
+        SiteStream stream = open(new SiteStream() {
+            public void put(Site site) {
+                results.add(site);
             }
-            for (Site site : sites) {
-                if (!passed.contains(site)) {
-                    output(site, false);
-                }
+            
+            public void end() {
             }
+        });
+        for (Site site : sites) {
+            stream.put(site);
         }
-        StatsManager.end(name);
+        stream.end();
         return results; 
     }
     
+    public SiteStream open(SiteStream next) {
+        return new FilterStream(next);
+    }
+    
+    protected boolean isOutputFiltered() {
+        return outputFiltered;
+    }
+    
     public void printStats(boolean printHeader) { 
         
         String lineFormat = "%1$-30s %2$30s %3$7s";
@@ -174,74 +287,161 @@ abstract public class BaseFilter implements Filter {
         return results;
     }
     
+    /**
+     * Post-process stage of this filter. Every site put into it is passed or 
+     * rejected exactly once, and the passed ones go to the next stage in the order
+     * they came in. Subclasses may hold sites back until they can be decided.
+     */
+    protected class FilterStream implements SiteStream {
+        
+        private final SiteStream next;
+        
+        public FilterStream(SiteStream next) {
+            this.next = next;
+        }
+        
+        public void put(Site site) {
+            StatsManager.start(name);
+            totalSites++;
+            process(site);
+            StatsManager.end(name);
+        }
+        
+        public void end() {
+            StatsManager.start(name);
+            flush();
+            StatsManager.end(name);
+            next.end();
+        }
+        
+        protected void process(Site site) {
+            if (doFilter(site)) {
+                pass(site);
+            } else {
+                reject(site);
+            }
+        }
+        
+        protected void flush() {
+        }
+        
+        protected void pass(Site site) {
+            passedSites++;
+            site.getPassedFilters().add(name);
+            output(site, true);
+            // the next stages are not timed as part of this one
+            StatsManager.end(name);
+            next.put(site);
+            StatsManager.start(name);
+        }
+        
+        protected void reject(Site site) {
+            output(site, false);
+        }
+    }
+    
+    /**
+     * Runs doFilter(List) on batches of sites of one reference, with at most 
+     * batchSize sites if it is positive.
+     */
+    protected class BatchStream extends FilterStream {
+        
+        private final int batchSize;
+        private final List<Site> batch = new ArrayList<Site>();
+        
+        public BatchStream(SiteStream next, int batchSize) {
+            super(next);
+            this.batchSize = batchSize;
+        }
+        
+        @Override
+        protected void process(Site site) {
+            if (!batch.isEmpty() && (batchSize > 0 && batch.size() >= batchSize || 
+                    !batch.get(0).getRefName().equals(site.getRefName()))) {
+                flush();
+            }
+            batch.add(site);
+        }
+        
+        @Override
+        protected void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            // the results keep the order of the batch
+            List<Site> results = doFilter(batch);
+            int i = 0;
+            for (Site site : batch) {
+                if (i < results.size() && results.get(i) == site) {
+                    pass(site);
+                    i++;
+                } else {
+                    reject(site);
+                }
+            }
+            batch.clear();
+        }
+    }
+    
     public Object[] getOutputMetadata(Site site) {
         return site.getMetadata(name);
     }
     
     public String buildOutput(Site site) {
-        
-        StringBuilder sb = new StringBuilder();
-        sb.append(site.getRefName()).append('\t');
-        sb.append(site.getRefPos()).append('\t');
-        sb.append((char) site.getRef()).append('\t');
-        sb.append(site.getDepth()).append('\t');
+        encoder.reset();
+        buildOutput(site, encoder);
+        return encoder.toString();
+    }
+    
+    public void buildOutput(Site site, RecordEncoder out) {
+        out.append(site.getRefName()).appendByte('\t');
+        out.append(site.getRefPos()).appendByte('\t');
+        out.append((char) site.getRef()).appendByte('\t');
+        out.append(site.getDepth()).appendByte('\t');
+        byte[] bases = site.getBases();
         for (int i = 0; i < site.getDepth(); ++i) {
-            char base = (char) site.getBases()[i];
-            if (site.getReads()[i].getReadNegativeStrandFlag()) {
-                base = Character.toLowerCase(base);
+            byte base = bases[i];
+            if (base >= 'A' && base <= 'Z' && site.isNegativeStrand(i)) {
+                base += 'a' - 'A';
+            } else if (base < 0 && site.isNegativeStrand(i)) {
+                out.append(Character.toLowerCase((char) base));
+                continue;
             }
-            sb.append(base);
+            out.append((char) base);
         }
-        sb.append('\t');
+        out.appendByte('\t');
         
+        byte[] quals = site.getBaseQualities();
         for (int i = 0; i < site.getDepth(); ++i) {
-            sb.append((char) (site.getBaseQualities()[i] + 33));
+            out.append((char) (quals[i] + 33));
         }
         
-        sb.append('\t');
-        sb.append((char) site.getMajorAllele()).append('\t').
-            append(site.getMajorAlleleCount()).append('\t');
-        sb.append((char) site.getMinorAllele()).append('\t').
+        out.appendByte('\t');
+        out.append((char) site.getMajorAllele()).appendByte('\t').
+            append(site.getMajorAlleleCount()).appendByte('\t');
+        out.append((char) site.getMinorAllele()).appendByte('\t').
             append(site.getMinorAlleleCount());
         Object[] metadata = getOutputMetadata(site);
         if (metadata != null) {
             for (Object data : metadata) {
-                String s;
-                if (data instanceof Double) {
-                    if (((Double) data).isInfinite() || ((Double) data).isNaN()) {
-                        s = data.toString();
-                    } else {
-                        s = format.format(data);
-                    }
-                } else {
-                    s = String.valueOf(data);
-                }
-               sb.append('\t').append(s);
+                out.appendByte('\t').append(data);
             }
         }
-        sb.append('\n');
-        return sb.toString();               
+        out.appendByte('\n');
     }
     
     public void output(Site site, boolean passed) {
-        String outputString = null;
-        if (filteredWriter != null && !passed) {
-            outputString = buildOutput(site);
-            try {
-                filteredWriter.write(outputString);
-                filteredWriter.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        } else if (passedWriter != null && passed) {
-            outputString = buildOutput(site);
-            try {
-                passedWriter.write(outputString);
-                passedWriter.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }        
+        AsyncFileWriter writer = passed ? passedWriter : filteredWriter;
+        if (writer == null) {
+            return;
+        }
+        encoder.reset();
+        buildOutput(site, encoder);
+        try {
+            encoder.writeTo(writer);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }    
     
     public MosaicHunterContext getContext() {
@@ -24,10 +24,7 @@
 
 package cn.edu.pku.cbi.mosaichunter.filter;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.File;
 
 import cn.edu.pku.cbi.mosaichunter.MosaicHunterContext;
 import cn.edu.pku.cbi.mosaichunter.Site;
@@ -36,17 +33,24 @@ import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
 public class BlacklistFilter extends BaseFilter {
 
     private final String blacklistFile;
+    private final String blacklistCacheFile;
     
-    private final Set<String> blacklist = new HashSet<String>();
+    private BlacklistStore blacklist = null;
     
     public BlacklistFilter(String name) {
         this(name,
-             ConfigManager.getInstance().get(name, "blacklist_file", null));
+             ConfigManager.getInstance().get(name, "blacklist_file", null),
+             ConfigManager.getInstance().get(name, "blacklist_cache_file", null));
     }
     
     public BlacklistFilter(String name, String blacklistFile) {
+        this(name, blacklistFile, null);
+    }
+    
+    public BlacklistFilter(String name, String blacklistFile, String blacklistCacheFile) {
         super(name);
         this.blacklistFile = blacklistFile;        
+        this.blacklistCacheFile = blacklistCacheFile;
     }
     
     
@@ -56,30 +60,29 @@ public class BlacklistFilter extends BaseFilter {
         if (blacklistFile == null || blacklistFile.trim().isEmpty()) {
             return;
         }
-        BufferedReader reader = null; 
-        try {
-            reader = new BufferedReader(new FileReader(blacklistFile));
-            for(;;) {
-                String line =  reader.readLine();
-               if (line == null) {
-                   break;
-               }
-               String[] tokens = line.split("\\t");
-               if (tokens.length < 2) {
-                   continue;
-               }
-               String key = tokens[0] + ":" + tokens[1];
-               blacklist.add(key);
-            }
-        } finally {
-            if (reader != null) {
-                reader.close();
-            }
-        }   
+        File file = new File(blacklistFile.trim());
+        if (BlacklistStore.isStore(file)) {
+            blacklist = BlacklistStore.open(file, context.getReferenceManager());
+        } else {
+            blacklist = BlacklistStore.open(
+                    file, getBlacklistCacheFile(file), context.getReferenceManager());
+        }
+    }
+    
+    private File getBlacklistCacheFile(File file) {
+        if (blacklistCacheFile != null && !blacklistCacheFile.trim().isEmpty()) {
+            return new File(blacklistCacheFile.trim());
+        }
+        String odName = ConfigManager.getInstance().get(null, "output_dir", ".");
+        File od = new File(odName);
+        if (!od.isDirectory()) {
+            od.mkdirs();
+        }
+        return new File(od, getName() + ".mhbl");
     }
     
     @Override
     public boolean doFilter(Site site) { 
-        return !blacklist.contains(site.getRefName() + ":" + site.getRefPos());
+        return blacklist == null || !blacklist.contains(site.getRefId(), site.getRefPos());
     }
 }
@@ -0,0 +1,241 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package cn.edu.pku.cbi.mosaichunter.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cn.edu.pku.cbi.mosaichunter.reference.ReferenceManager;
+
+/**
+ * Blacklisted positions as a sorted int array per reference id. The binary 
+ * copy of a blacklist TSV (chr, pos) holds the arrays of every chromosome in 
+ * the TSV, so it is loaded without parsing or sorting.
+ */
+public class BlacklistStore {
+
+    public static final long MAGIC = 0x4d48424c4b303031L; // MHBLK001
+    
+    private static final int[] EMPTY = new int[0];
+    
+    private final int[][] positions;
+    private final long sourceLength;
+    private final long sourceLastModified;
+    
+    private BlacklistStore(int[][] positions, long sourceLength, long sourceLastModified) {
+        this.positions = positions;
+        this.sourceLength = sourceLength;
+        this.sourceLastModified = sourceLastModified;
+    }
+    
+    public boolean contains(int refId, long pos) {
+        if (refId < 0 || refId >= positions.length || pos > Integer.MAX_VALUE) {
+            return false;
+        }
+        return Arrays.binarySearch(positions[refId], (int) pos) >= 0;
+    }
+    
+    public static BlacklistStore open(File storeFile, ReferenceManager referenceManager) 
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(storeFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (file.length() < 28 || file.readLong() != MAGIC) {
+                throw new IOException("invalid blacklist store: " + storeFile);
+            }
+            long sourceLength = file.readLong();
+            long sourceLastModified = file.readLong();
+            int chrCount = file.readInt();
+            int[][] positions = newPositions(referenceManager);
+            for (int i = 0; i < chrCount; ++i) {
+                String name = file.readUTF();
+                int n = file.readInt();
+                int refId = referenceManager.getReferenceId(name);
+                if (refId < 0) {
+                    file.seek(file.getFilePointer() + n * 4L);
+                    continue;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(n * 4);
+                long offset = file.getFilePointer();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("unexpected end of blacklist store");
+                    }
+                }
+                buffer.flip();
+                positions[refId] = new int[n];
+                buffer.asIntBuffer().get(positions[refId]);
+                file.seek(offset + n * 4L);
+            }
+            return new BlacklistStore(positions, sourceLength, sourceLastModified);
+        } finally {
+            file.close();
+        }
+    }
+    
+    // opens the store converted from the TSV file, converting it first if the 
+    // store is missing or was built from another version of the TSV file
+    public static synchronized BlacklistStore open(
+            File tsvFile, File storeFile, ReferenceManager referenceManager) throws IOException {
+        if (storeFile.isFile()) {
+            BlacklistStore store = null;
+            try {
+                store = open(storeFile, referenceManager);
+            } catch (IOException e) {
+                store = null;
+            }
+            if (store != null && 
+                store.sourceLength == tsvFile.length() && 
+                store.sourceLastModified == tsvFile.lastModified()) {
+                return store;
+            }
+        }
+        convert(tsvFile, storeFile);
+        return open(storeFile, referenceManager);
+    }
+    
+    public static boolean isStore(File file) throws IOException {
+        if (!file.isFile() || file.length() < 8) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readLong() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Converts a blacklist TSV file, in any order. Lines with less than two 
+     * columns or a position that is not a number are left out.
+     */
+    public static void convert(File tsvFile, File storeFile) throws IOException {
+        Map<String, PositionArray> chromosomes = new LinkedHashMap<String, PositionArray>();
+        BufferedReader reader = new BufferedReader(new FileReader(tsvFile), 1 << 20);
+        try {
+            String line;
+            PositionArray last = null;
+            String lastName = null;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                int end = line.indexOf('\t', tab + 1);
+                if (end < 0) {
+                    end = line.length();
+                }
+                int pos;
+                try {
+                    pos = Integer.parseInt(line.substring(tab + 1, end));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (lastName == null || lastName.length() != tab || !line.startsWith(lastName)) {
+                    lastName = line.substring(0, tab);
+                    last = chromosomes.get(lastName);
+                    if (last == null) {
+                        last = new PositionArray();
+                        chromosomes.put(lastName, last);
+                    }
+                }
+                last.add(pos);
+            }
+        } finally {
+            reader.close();
+        }
+        
+        File tmpFile = new File(storeFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20));
+        try {
+            out.writeLong(MAGIC);
+            out.writeLong(tsvFile.length());
+            out.writeLong(tsvFile.lastModified());
+            out.writeInt(chromosomes.size());
+            for (Map.Entry<String, PositionArray> entry : chromosomes.entrySet()) {
+                int[] values = entry.getValue().toSortedArray();
+                out.writeUTF(entry.getKey());
+                out.writeInt(values.length);
+                for (int value : values) {
+                    out.writeInt(value);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(storeFile)) {
+            storeFile.delete();
+            if (!tmpFile.renameTo(storeFile)) {
+                tmpFile.delete();
+                throw new IOException("cannot rename " + tmpFile + " to " + storeFile);
+            }
+        }
+    }
+    
+    private static int[][] newPositions(ReferenceManager referenceManager) {
+        int[][] positions = new int[referenceManager.getReferenceNumber()][];
+        Arrays.fill(positions, EMPTY);
+        return positions;
+    }
+    
+    private static class PositionArray {
+        private int[] values = new int[16];
+        private int size = 0;
+        
+        public void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+        
+        // sorted without duplicates
+        public int[] toSortedArray() {
+            Arrays.sort(values, 0, size);
+            int n = 0;
+            for (int i = 0; i < size; ++i) {
+                if (n == 0 || values[i] != values[n - 1]) {
+                    values[n++] = values[i];
+                }
+            }
+            return Arrays.copyOf(values, n);
+        }
+    }
+}
@@ -24,9 +24,6 @@
 
 package cn.edu.pku.cbi.mosaichunter.filter;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import cn.edu.pku.cbi.mosaichunter.Site;
 import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
 
@@ -34,6 +31,8 @@ public class ClusteredFilter extends BaseFilter {
 
     public static final long DEFAULT_INNER_DISTANCE = 20000;
     public static final long DEFAULT_OUTER_DISTANCE = 20000;
+    
+    private static final int WINDOW_SIZE = 8;
         
     private final long innerDistance;
     private final long outerDistance;
@@ -60,105 +59,116 @@ public class ClusteredFilter extends BaseFilter {
     }
     
     @Override
-    public List<Site> doFilter(List<Site> sites) {
-        List<Site> filtered = new ArrayList<Site>();
-        ArrayList<Site> pendingSites = new ArrayList<Site>();
-        String lastChr = null;
-        for (Site site : sites) {
+    public SiteStream open(SiteStream next) {
+        return new ClusteredStream(next);
+    }
+    
+    // a site is decided once the three sites after it on its reference are known, 
+    // the window also keeps the three before it for the metadata
+    private class ClusteredStream extends FilterStream {
+        
+        private final Site[] sites = new Site[WINDOW_SIZE];
+        private final boolean[] filterFlag = new boolean[WINDOW_SIZE];
+        private String lastChr = null;
+        private int n = 0;
+        private int decided = 0;
+        private boolean lastClustered = false;
+        
+        public ClusteredStream(SiteStream next) {
+            super(next);
+        }
+        
+        @Override
+        protected void process(Site site) {
             if (!site.getRefName().equals(lastChr)) {
-                filtered.addAll(process(pendingSites));
+                flush();
                 lastChr = site.getRefName();
-                pendingSites = new ArrayList<Site>();
-            
             }
-            pendingSites.add(site);
-        }
-        filtered.addAll(process(pendingSites));
-        return filtered;
-    }
-    
-    public List<Site> process(List<Site> sites) {
-        int n = sites.size();
-        if (n < 3) {
-            List<Site> passed = new ArrayList<Site>();
-            for (Site site : sites) {
-                if (auxiliaryFilterName == null ||
-                    !site.getPassedFilters().contains(auxiliaryFilterName)) {
-                    passed.add(site);
+            int i = n++;
+            sites[i % WINDOW_SIZE] = site;
+            filterFlag[i % WINDOW_SIZE] = false;
+            if (lastClustered && site.getRefPos() - get(i - 1).getRefPos() <= outerDistance) {
+                filterFlag[i % WINDOW_SIZE] = true;
+            }
+            lastClustered = false;
+            if (i >= 2 && site.getRefPos() - get(i - 2).getRefPos() <= innerDistance) {
+                filterFlag[(i - 2) % WINDOW_SIZE] = true;
+                filterFlag[(i - 1) % WINDOW_SIZE] = true;
+                filterFlag[i % WINDOW_SIZE] = true;
+                if (i >= 3 && get(i - 2).getRefPos() - get(i - 3).getRefPos() <= outerDistance) {
+                    filterFlag[(i - 3) % WINDOW_SIZE] = true;
                 }
+                lastClustered = true;
+            }
+            if (i >= 3) {
+                decide(i - 3);
             }
-            return passed;
         }
-        boolean[] filterFlag = new boolean[n]; 
-        
-        Site site0 = null;
-        Site site1 = sites.get(0);
-        Site site2 = sites.get(1);
-        Site site3 = null;
         
-        for (int i = 2; i < n; ++i) {
-            site3 = sites.get(i);
-            if (site3.getRefName().equals(site1.getRefName()) && 
-                site3.getRefPos() - site1.getRefPos() <= innerDistance) {
-                filterFlag[i - 2] = true;
-                filterFlag[i - 1] = true;
-                filterFlag[i] = true;
-                if (site0 != null && 
-                    site0.getRefName().equals(site1.getRefName()) && 
-                    site1.getRefPos() - site0.getRefPos() <= outerDistance) {
-                    filterFlag[i - 3] = true;
+        @Override
+        protected void flush() {
+            if (n < 3) {
+                for (int i = decided; i < n; ++i) {
+                    Site site = get(i);
+                    if (auxiliaryFilterName == null ||
+                        !site.getPassedFilters().contains(auxiliaryFilterName)) {
+                        pass(site);
+                    } else {
+                        reject(site);
+                    }
                 }
-                if (i + 1 < n &&
-                    sites.get(i + 1).getRefName().equals(site3.getRefName()) &&
-                    sites.get(i + 1).getRefPos() - site3.getRefPos() <= outerDistance) {
-                    filterFlag[i + 1] = true;
+            } else {
+                for (int i = decided; i < n; ++i) {
+                    decide(i);
                 }
             }
-            site0 = site1;
-            site1 = site2;
-            site2 = site3;
+            for (int i = 0; i < WINDOW_SIZE; ++i) {
+                sites[i] = null;
+            }
+            n = 0;
+            decided = 0;
+            lastClustered = false;
         }
         
-        List<Site> passed = new ArrayList<Site>();
-        for (int i = 0; i < n; ++i) {
-            Site site = sites.get(i);
-            String posBefore = "";
+        private Site get(int i) {
+            return sites[i % WINDOW_SIZE];
+        }
+        
+        private void decide(int i) {
+            Site site = get(i);
+            StringBuilder posBefore = new StringBuilder();
             for (int k = i - 3; k < i; ++k) {
                 if (k > 0) {
-                    Site siteBefore = sites.get(k);
-                    if (siteBefore.getRefName().equals(site.getRefName())) {
-                        if (!posBefore.isEmpty()) {
-                            posBefore += ",";
-                        }
-                        posBefore += siteBefore.getRefPos();
+                    if (posBefore.length() > 0) {
+                        posBefore.append(',');
                     }
+                    posBefore.append(get(k).getRefPos());
                 }
             }
-            String posAfter = "";
+            StringBuilder posAfter = new StringBuilder();
             for (int k = i + 1; k <= i + 3; ++k) {
                 if (k < n) {
-                    Site siteAfter = sites.get(k);
-                    if (siteAfter.getRefName().equals(site.getRefName())) {
-                        if (!posAfter.isEmpty()) {
-                            posAfter += ",";
-                        }
-                        posAfter += siteAfter.getRefPos();
+                    if (posAfter.length() > 0) {
+                        posAfter.append(',');
                     }
+                    posAfter.append(get(k).getRefPos());
                 }
             }
             
             site.setMetadata(
                     getName(),
                     new Object[] {
-                        posBefore,
-                        posAfter});
-            if (!filterFlag[i] && 
+                        posBefore.toString(),
+                        posAfter.toString()});
+            if (!filterFlag[i % WINDOW_SIZE] && 
                 (auxiliaryFilterName == null || 
                 !site.getPassedFilters().contains(auxiliaryFilterName))) {
-                passed.add(site);
-            } 
+                pass(site);
+            } else {
+                reject(site);
+            }
+            decided = i + 1;
         }
-        return passed;
     }
 
 }
@@ -24,18 +24,12 @@
 
 package cn.edu.pku.cbi.mosaichunter.filter;
 
-import java.util.HashMap;
-import java.util.Map;
-
-import org.apache.commons.math3.stat.inference.AlternativeHypothesis;
-import org.apache.commons.math3.stat.inference.BinomialTest;
-
 import net.sf.samtools.SAMRecord;
 import cn.edu.pku.cbi.mosaichunter.MosaicHunterHelper;
+import cn.edu.pku.cbi.mosaichunter.ReadsCache;
 import cn.edu.pku.cbi.mosaichunter.Site;
 import cn.edu.pku.cbi.mosaichunter.StatsManager;
 import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
-import cn.edu.pku.cbi.mosaichunter.math.FishersExactTest;
 
 public class CompleteLinkageFilter extends BaseFilter {
 
@@ -43,9 +37,7 @@ public class CompleteLinkageFilter extends BaseFilter {
     public static final double DEFAULT_BINOM_P_VALUE_CUTOFF = 0.01;
     public static final double DEFAULT_FISHER_P_VALUE_CUTOFF = 0.01;
     
-    private final double binomErrorRate;
-    private final double binomPValueCutoff;
-    private final double fisherPValueCutoff;
+    private final LinkedPositionCounter counter;
     
     public CompleteLinkageFilter(String name) {
         this(name,
@@ -54,35 +46,37 @@ public class CompleteLinkageFilter extends BaseFilter {
              ConfigManager.getInstance().getDouble(
                      name, "binom_p_value_cutoff", DEFAULT_BINOM_P_VALUE_CUTOFF),
              ConfigManager.getInstance().getDouble(
-                     name, "fisher_p_value_cutoff", DEFAULT_FISHER_P_VALUE_CUTOFF));
+                     name, "fisher_p_value_cutoff", DEFAULT_FISHER_P_VALUE_CUTOFF),
+             ConfigManager.getInstance().getInt(null, "min_read_quality", 0),
+             ConfigManager.getInstance().getInt(null, "min_mapping_quality", 0));
     }
     
     public CompleteLinkageFilter(String name, 
-            double binomErrorRate, double binomPValueCutoff, double fisherPValueCutoff) {
+            double binomErrorRate, double binomPValueCutoff, double fisherPValueCutoff,
+            int minReadQuality, int minMappingQuality) {
         super(name);
-        this.binomErrorRate = binomErrorRate;       
-        this.binomPValueCutoff = binomPValueCutoff;        
-        this.fisherPValueCutoff = fisherPValueCutoff;        
+        this.counter = new LinkedPositionCounter(
+                binomErrorRate, binomPValueCutoff, fisherPValueCutoff, 
+                minReadQuality, minMappingQuality);
     }   
         
     @Override
     public boolean doFilter(Site site) {  
         
-        SAMRecord[] reads = site.getReads();
+        SAMRecord[] reads = getReads(site);
         if (!doFilter(site, reads)) {
             return false;
         }
         
+        ReadsCache readsCache = getContext().getReadsCache();
         SAMRecord[] mates = new SAMRecord[site.getDepth()];
             
         for (int i = 0; i < mates.length; ++i) {
-            if (!reads[i].getReadPairedFlag()) {
+            if (reads[i] == null || !reads[i].getReadPairedFlag()) {
                 continue;
             }
             
-            if (mates[i] == null) {
-                mates[i] = getContext().getReadsCache().getMate(reads[i]);
-            }
+            mates[i] = readsCache.getMate(reads[i]);
             StatsManager.count("mate_query");
             
             // may cause exception for unpaired reads
@@ -93,15 +87,20 @@ public class CompleteLinkageFilter extends BaseFilter {
                 }
             } else if (mates[i] == null) {
                 StatsManager.count("mate_miss", 1);
-                SAMRecord m = null;
-                try {
-                    m = getContext().getSAMFileReader().queryMate(reads[i]);
-                } catch (Exception e) {
-                    StatsManager.count("mate_multiple", 1);
-                }
-                if (m != null && m.getAlignmentStart() != reads[i].getAlignmentStart()) {
-                    mates[i] = m;
-                    StatsManager.count("mate_miss_true", 1);
+                
+                // only mates out of the reach of the reads cache are queried from the input
+                if (!readsCache.isMateCovered(reads[i])) {
+                    StatsManager.count("mate_miss_uncovered", 1);
+                    SAMRecord m = null;
+                    try {
+                        m = getContext().getSAMFileReader().queryMate(reads[i]);
+                    } catch (Exception e) {
+                        StatsManager.count("mate_multiple", 1);
+                    }
+                    if (m != null && m.getAlignmentStart() != reads[i].getAlignmentStart()) {
+                        mates[i] = m;
+                        StatsManager.count("mate_miss_true", 1);
+                    }
                 }
                 int dis = Math.abs(reads[i].getMateAlignmentStart() - reads[i].getAlignmentStart());
                 if (dis > 0) {
@@ -130,105 +129,23 @@ public class CompleteLinkageFilter extends BaseFilter {
     }    
     
     private boolean doFilter(Site site, SAMRecord[] reads) {
-        String chrName = site.getRefName();
-        int minReadQuality = ConfigManager.getInstance().getInt(null, "min_read_quality", 0);
-        int minMappingQuality = ConfigManager.getInstance().getInt(null, "min_mapping_quality", 0);
-               
-
-        // find out all related positions
-        Map<Integer, PositionEntry> positions = new HashMap<Integer, PositionEntry>();                
-        for (int i = 0; i < site.getDepth(); ++i) {
-            
-            if (reads[i] == null || !chrName.equals(reads[i].getReferenceName())) {
-                continue;
-            }
-            byte base = site.getBases()[i];           
-            if (base != site.getMajorAllele() && base != site.getMinorAllele()) {
-                continue;
-            }
-            boolean isMajor = base == site.getMajorAllele();               
-            for (int j = 0; j < reads[i].getReadLength(); ++j) {
-                if (reads[i].getBaseQualities()[j] < minReadQuality) {
-                    continue;
-                }
-                if (reads[i].getMappingQuality() < minMappingQuality) {
-                    continue;
-                }
-                int id = MosaicHunterHelper.BASE_TO_ID[reads[i].getReadBases()[j]];
-                if (id < 0) {
-                    continue;
-                }             
-                int pos = reads[i].getReferencePositionAtReadPosition(j + 1);
-                if (pos == site.getRefPos()) {
-                    continue;
-                }
-                PositionEntry entry = positions.get(pos);
-                if (entry == null) {
-                    entry = new PositionEntry();
-                    positions.put(pos, entry);
-                }
-                entry.count[id]++;
-                if (isMajor) {
-                    entry.majorCount[id]++;
-                } else {
-                    entry.minorCount[id]++;
-                }                
-            }
+        if (!counter.find(site, reads)) {
+            return true;
         }
-        
-        // for each position
-        for (Integer pos : positions.keySet()) {
-            PositionEntry entry = positions.get(pos);
-            int[] ids = MosaicHunterHelper.sortAlleleCount(entry.count);
-            int majorId = ids[0];
-            int minorId = ids[1];
-            
-            int diagonalSum1 = entry.majorCount[majorId] + entry.minorCount[minorId];
-            int diagonalSum2 = entry.majorCount[minorId] + entry.minorCount[majorId];
-            int totalSum = diagonalSum1 + diagonalSum2;
-            int smallDiagonalSum = diagonalSum1;
-            if (diagonalSum2 < diagonalSum1) {
-                smallDiagonalSum = diagonalSum2;
-            }
-
-            if (new BinomialTest().binomialTest(
-                    totalSum, smallDiagonalSum, this.binomErrorRate, AlternativeHypothesis.GREATER_THAN)
-                    < binomPValueCutoff) {
-                continue;
-            }
-                
-            double p = FishersExactTest.twoSided(
-                    entry.majorCount[majorId], 
-                    entry.majorCount[minorId], 
-                    entry.minorCount[majorId],
-                    entry.minorCount[minorId]);
-            
-            
-            if (p < fisherPValueCutoff) {
-                char major1 = (char) site.getMajorAllele();
-                char minor1 = (char) site.getMinorAllele();
-                char major2 = (char) MosaicHunterHelper.ID_TO_BASE[majorId];
-                char minor2 = (char) MosaicHunterHelper.ID_TO_BASE[minorId];
-                site.setMetadata(
-                        getName(),
-                        new Object[] {
-                            pos,
-                            "" + major1 + major2 + ":" + entry.majorCount[majorId],
-                            "" + major1 + minor2 + ":" + entry.majorCount[minorId],
-                            "" + minor1 + major2 + ":" + entry.minorCount[majorId],
-                            "" + minor1 + minor2 + ":" + entry.minorCount[minorId],
-                            p});
-                return false;
-            } 
-            
-        }     
-        return true;
-    }
-    
-    private class PositionEntry {
-        private int[] majorCount = new int[4];
-        private int[] minorCount = new int[4];
-        private int[] count = new int[4];
+        char major1 = (char) site.getMajorAllele();
+        char minor1 = (char) site.getMinorAllele();
+        char major2 = (char) MosaicHunterHelper.ID_TO_BASE[counter.getMajorId()];
+        char minor2 = (char) MosaicHunterHelper.ID_TO_BASE[counter.getMinorId()];
+        site.setMetadata(
+                getName(),
+                new Object[] {
+                    counter.getPosition(),
+                    "" + major1 + major2 + ":" + counter.getCount(0),
+                    "" + major1 + minor2 + ":" + counter.getCount(1),
+                    "" + minor1 + major2 + ":" + counter.getCount(2),
+                    "" + minor1 + minor2 + ":" + counter.getCount(3),
+                    counter.getPValue()});
+        return false;
     }
     
 }
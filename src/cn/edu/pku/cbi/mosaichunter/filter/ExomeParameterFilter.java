@@ -124,7 +124,8 @@ public class ExomeParameterFilter extends BaseFilter {
     }
     
     @Override
-    public void close() throws IOException {
+    public void close() throws Exception {
+        super.close();
         Collections.sort(sites, new Comparator<SimpleSite>() {
             public int compare(SimpleSite a, SimpleSite b) {
                 if (a.depth > b.depth) {
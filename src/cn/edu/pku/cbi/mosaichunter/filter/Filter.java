@@ -24,6 +24,9 @@
 
 package cn.edu.pku.cbi.mosaichunter.filter;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.List;
 
 import cn.edu.pku.cbi.mosaichunter.MosaicHunterContext;
@@ -41,10 +44,31 @@ public interface Filter {
     
     List<Site> filter(List<Site> sites);
     
+    // streaming post-process stage, the passed sites are put into next in order
+    SiteStream open(SiteStream next);
+    
     void printStats(boolean printHeader);
     
     void close() throws Exception;
     
+    // null keeps the outputs closed until a directory is set
+    void setOutputDir(String outputDir) throws IOException;
+    
+    void mergeStats(Filter filter);
+    
+    void clearStats();
+    
+    // reseeds the depth sampling of the filter's own site readers, before each 
+    // chunk of a parallel scan
+    void setRandomSeed(long seed);
+    
+    // counters and output file sizes, saved in scan checkpoints
+    void writeState(DataOutput out) throws IOException;
+    
+    // merge adds the counters, otherwise they are replaced and the output files
+    // are truncated to the saved sizes when they are opened
+    void readState(DataInput in, boolean merge) throws IOException;
+    
     MosaicHunterContext getContext();
     
 }
@@ -24,20 +24,26 @@
 
 package cn.edu.pku.cbi.mosaichunter.filter;
 
+import java.io.File;
+
+import cn.edu.pku.cbi.mosaichunter.MosaicHunterContext;
 import cn.edu.pku.cbi.mosaichunter.Site;
 import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
+import cn.edu.pku.cbi.mosaichunter.reference.HomopolymerMask;
 
-public class HomopolymersFilter extends BaseFilter {
+public class HomopolymersFilter extends BaseFilter implements MaskableFilter {
 
     public static final int DEFAULT_SHORT_HOMOPOLYMER_LENGTH = 4;
     public static final int DEFAULT_LONG_HOMOPOLYMER_LENGTH = 6;
     public static final int DEFAULT_SHORT_HOMOPOLYMER_EXPANSION = 2;
     public static final int DEFAULT_LONG_HOMOPOLYMER_EXPANSION = 3;
     
+    private final String referenceFile;
     private final int shortHomopolymerLength;
     private final int longHomopolymerLength;
     private final int shortHomopolymerExpansion;
     private final int longHomopolymerExpansion;
+    private HomopolymerMask mask = null;
     
     public HomopolymersFilter(String name) {
         this(name,
@@ -56,6 +62,7 @@ public class HomopolymersFilter extends BaseFilter {
             int shortHomopolymerLength, int longHomopolymerLength, 
             int shortHomopolymerExpansion, int longHomopolymerExpansion) {
         super(name);
+        this.referenceFile = referenceFile;
         this.shortHomopolymerLength = shortHomopolymerLength;
         this.longHomopolymerLength = longHomopolymerLength;
         this.shortHomopolymerExpansion = shortHomopolymerExpansion;
@@ -63,37 +70,46 @@ public class HomopolymersFilter extends BaseFilter {
     }
     
     @Override
-    public boolean doFilter(Site site) {   
-        
-        long pos = site.getRefPos();
-        int width = Math.max(
-                longHomopolymerLength + longHomopolymerExpansion, 
-                shortHomopolymerLength + shortHomopolymerExpansion);
-        
-        long left = site.getRefPos() - width + 1;
-        long right = site.getRefPos() + width - 1;
-        byte lastBase = 'N';
-        int cnt = 0;
-        for (long i = left; i <= right + 1; ++i) {
-            byte base = getContext().getReferenceManager().getBase(
-                    site.getRefName(), i);
-            if (base == 'N' || base != lastBase || i == right + 1) {
-                if ((cnt >= longHomopolymerLength && 
-                     (i - cnt - longHomopolymerExpansion <= pos &&
-                      i - 1 + longHomopolymerExpansion >= pos)) || 
-                    (cnt >= shortHomopolymerLength && 
-                     (i - cnt - shortHomopolymerExpansion <= pos &&
-                      i - 1 + shortHomopolymerExpansion >= pos))) {
-                    return false;
-                } 
-                cnt = 0;
-            }
-            if (base != 'N') {
-                cnt++;
+    public void init(MosaicHunterContext context) throws Exception {
+        super.init(context);
+        mask = HomopolymerMask.getInstance(
+                context.getReferenceManager(), 
+                shortHomopolymerLength, longHomopolymerLength, 
+                shortHomopolymerExpansion, longHomopolymerExpansion,
+                getMaskCacheFile(), referenceFile == null ? null : new File(referenceFile));
+    }
+    
+    // next to the reference cache file, only if the reference cache is enabled
+    private File getMaskCacheFile() {
+        ConfigManager config = ConfigManager.getInstance();
+        if (referenceFile == null || !config.getBoolean(null, "enable_reference_cache", false)) {
+            return null;
+        }
+        File dir;
+        String cacheFileName = config.get(null, "reference_cache_file", null);
+        if (cacheFileName != null && !cacheFileName.trim().isEmpty()) {
+            dir = new File(cacheFileName).getAbsoluteFile().getParentFile();
+        } else {
+            dir = new File(config.get(null, "output_dir", "."));
+        }
+        return new File(dir, new File(referenceFile).getName() + ".homopolymers_" + 
+                shortHomopolymerLength + "_" + longHomopolymerLength + "_" + 
+                shortHomopolymerExpansion + "_" + longHomopolymerExpansion + ".mhhmp");
+    }
+    
+    public ExcludeMask createExcludeMask() {
+        return new ExcludeMask() {
+            public boolean isExcluded(int refId, long pos) {
+                return mask.isMasked(refId, pos);
             }
-            lastBase = base;
+        };
+    }
+    
+    @Override
+    public boolean doFilter(Site site) {   
+        if (site.getRefId() < 0) {
+            throw new IllegalArgumentException("invalid reference name: " + site.getRefName());
         }
-        
-        return true;
+        return !mask.isMasked(site.getRefId(), site.getRefPos());
     }
 }
@@ -0,0 +1,237 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package cn.edu.pku.cbi.mosaichunter.filter;
+
+import java.util.Arrays;
+
+import net.sf.samtools.AlignmentBlock;
+import net.sf.samtools.SAMRecord;
+
+import org.apache.commons.math3.stat.inference.AlternativeHypothesis;
+import org.apache.commons.math3.stat.inference.BinomialTest;
+
+import cn.edu.pku.cbi.mosaichunter.MosaicHunterHelper;
+import cn.edu.pku.cbi.mosaichunter.Site;
+import cn.edu.pku.cbi.mosaichunter.math.FishersExactTest;
+
+/**
+ * Finds a position whose alleles are completely linked to the major and minor 
+ * alleles of a site. Reads are grouped into clusters of overlapping alignments, 
+ * and the bases of each cluster are counted per position in one walk over the 
+ * alignment blocks, into an array that is reused between sites. Positions are 
+ * tested in coordinate order, so of several linked positions the one with the 
+ * lowest coordinate is reported.
+ */
+public class LinkedPositionCounter {
+
+    public static final int INITIAL_SPAN = 1024;
+    
+    // per position: 4 bases of the site-major reads, then 4 of the site-minor reads
+    private static final int STRIDE = 8;
+    
+    private final double binomErrorRate;
+    private final double binomPValueCutoff;
+    private final double fisherPValueCutoff;
+    private final int minReadQuality;
+    private final int minMappingQuality;
+    private final BinomialTest binomialTest = new BinomialTest();
+    
+    private int[] counts = new int[INITIAL_SPAN * STRIDE];
+    private long[] order = new long[64];
+    private final int[] alleleCount = new int[4];
+    
+    private int position;
+    private int majorId;
+    private int minorId;
+    private final int[] table = new int[4];
+    private double pValue;
+    
+    public LinkedPositionCounter(double binomErrorRate, double binomPValueCutoff, 
+            double fisherPValueCutoff, int minReadQuality, int minMappingQuality) {
+        this.binomErrorRate = binomErrorRate;
+        this.binomPValueCutoff = binomPValueCutoff;
+        this.fisherPValueCutoff = fisherPValueCutoff;
+        this.minReadQuality = minReadQuality;
+        this.minMappingQuality = minMappingQuality;
+    }
+    
+    /**
+     * Returns whether a linked position is found. reads[i] is counted with the 
+     * allele of the i-th read of the site, so it may hold the mates as well.
+     */
+    public boolean find(Site site, SAMRecord[] reads) {
+        String chrName = site.getRefName();
+        byte majorAllele = site.getMajorAllele();
+        byte minorAllele = site.getMinorAllele();
+        byte[] siteBases = site.getBases();
+        int depth = site.getDepth();
+        
+        // reads sorted by alignment start, with their index in the low bits
+        if (order.length < depth) {
+            order = new long[Math.max(depth, order.length * 2)];
+        }
+        int n = 0;
+        for (int i = 0; i < depth; ++i) {
+            SAMRecord read = reads[i];
+            if (read == null || !chrName.equals(read.getReferenceName())) {
+                continue;
+            }
+            if (siteBases[i] != majorAllele && siteBases[i] != minorAllele) {
+                continue;
+            }
+            if (read.getMappingQuality() < minMappingQuality) {
+                continue;
+            }
+            order[n++] = ((long) read.getAlignmentStart() << 32) | i;
+        }
+        Arrays.sort(order, 0, n);
+        
+        int sitePos = (int) site.getRefPos();
+        int first = 0;
+        while (first < n) {
+            int clusterStart = (int) (order[first] >>> 32);
+            int clusterEnd = reads[(int) order[first]].getAlignmentEnd();
+            int last = first + 1;
+            while (last < n && (int) (order[last] >>> 32) <= clusterEnd) {
+                clusterEnd = Math.max(clusterEnd, reads[(int) order[last]].getAlignmentEnd());
+                last++;
+            }
+            
+            int span = clusterEnd - clusterStart + 1;
+            if (counts.length < span * STRIDE) {
+                counts = new int[Math.max(span, counts.length / STRIDE * 2) * STRIDE];
+            } else {
+                Arrays.fill(counts, 0, span * STRIDE, 0);
+            }
+            for (int k = first; k < last; ++k) {
+                int i = (int) order[k];
+                count(reads[i], siteBases[i] == majorAllele ? 0 : 4, clusterStart, sitePos);
+            }
+            for (int pos = clusterStart; pos <= clusterEnd; ++pos) {
+                if (test(pos, (pos - clusterStart) * STRIDE)) {
+                    return true;
+                }
+            }
+            first = last;
+        }
+        return false;
+    }
+    
+    private void count(SAMRecord read, int row, int clusterStart, int sitePos) {
+        byte[] bases = read.getReadBases();
+        byte[] quals = read.getBaseQualities();
+        for (AlignmentBlock block : read.getAlignmentBlocks()) {
+            int basePos = block.getReadStart() - 1;
+            int refPos = block.getReferenceStart();
+            for (int j = 0; j < block.getLength(); ++j, ++basePos, ++refPos) {
+                if (quals[basePos] < minReadQuality || refPos == sitePos) {
+                    continue;
+                }
+                int id = MosaicHunterHelper.BASE_TO_ID[bases[basePos]];
+                if (id < 0) {
+                    continue;
+                }
+                counts[(refPos - clusterStart) * STRIDE + row + id]++;
+            }
+        }
+    }
+    
+    private boolean test(int pos, int offset) {
+        // a table with an empty margin has a p-value of 1, skip it cheaply
+        int majorSum = 0;
+        int minorSum = 0;
+        int alleles = 0;
+        for (int id = 0; id < 4; ++id) {
+            int major = counts[offset + id];
+            int minor = counts[offset + 4 + id];
+            majorSum += major;
+            minorSum += minor;
+            alleleCount[id] = major + minor;
+            if (alleleCount[id] > 0) {
+                alleles++;
+            }
+        }
+        if ((majorSum == 0 || minorSum == 0 || alleles < 2) && fisherPValueCutoff <= 1) {
+            return false;
+        }
+        
+        int[] ids = MosaicHunterHelper.sortAlleleCount(alleleCount);
+        int major = ids[0];
+        int minor = ids[1];
+        int n11 = counts[offset + major];
+        int n12 = counts[offset + minor];
+        int n21 = counts[offset + 4 + major];
+        int n22 = counts[offset + 4 + minor];
+        if ((n11 + n12 == 0 || n21 + n22 == 0) && fisherPValueCutoff <= 1) {
+            return false;
+        }
+        
+        int diagonalSum1 = n11 + n22;
+        int diagonalSum2 = n12 + n21;
+        if (binomialTest.binomialTest(
+                diagonalSum1 + diagonalSum2, Math.min(diagonalSum1, diagonalSum2), 
+                binomErrorRate, AlternativeHypothesis.GREATER_THAN) < binomPValueCutoff) {
+            return false;
+        }
+        double p = FishersExactTest.twoSided(n11, n12, n21, n22);
+        if (p >= fisherPValueCutoff) {
+            return false;
+        }
+        
+        position = pos;
+        majorId = major;
+        minorId = minor;
+        table[0] = n11;
+        table[1] = n12;
+        table[2] = n21;
+        table[3] = n22;
+        pValue = p;
+        return true;
+    }
+    
+    public int getPosition() {
+        return position;
+    }
+    
+    public int getMajorId() {
+        return majorId;
+    }
+    
+    public int getMinorId() {
+        return minorId;
+    }
+    
+    /**
+     * Returns the counts of the last linked position as major-major, major-minor, 
+     * minor-major and minor-minor, the site allele first.
+     */
+    public int getCount(int i) {
+        return table[i];
+    }
+    
+    public double getPValue() {
+        return pValue;
+    }
+}
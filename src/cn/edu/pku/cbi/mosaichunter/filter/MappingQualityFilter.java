@@ -57,10 +57,10 @@ public class MappingQualityFilter extends BaseFilter {
         int i2 = 0;
         for (int i = 0; i < site.getDepth(); ++i) {
             if (site.getBases()[i] == site.getMajorAllele()) {
-                majorAlleleQualities[i1] = site.getReads()[i].getMappingQuality();
+                majorAlleleQualities[i1] = site.getMappingQuality(i);
                 i1++;
             } else if (site.getBases()[i] == site.getMinorAllele()) {
-                minorAlleleQualities[i2] = site.getReads()[i].getMappingQuality();
+                minorAlleleQualities[i2] = site.getMappingQuality(i);
                 i2++;
             }
         }
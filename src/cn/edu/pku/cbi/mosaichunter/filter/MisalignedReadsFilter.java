@@ -17,6 +17,7 @@ import java.util.Set;
 import net.sf.samtools.AlignmentBlock;
 import net.sf.samtools.SAMRecord;
 import cn.edu.pku.cbi.mosaichunter.Site;
+import cn.edu.pku.cbi.mosaichunter.StatsManager;
 import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
 import cn.edu.pku.cbi.mosaichunter.config.Validator;
 
@@ -34,6 +35,7 @@ public class MisalignedReadsFilter extends BaseFilter {
 	public static final boolean DEFAULT_OMIT_MULTIPLE_ALIGNMENT = false;
     public static final boolean DEFAULT_ENABLE_BLAT = true;
 	public static final boolean DEFAULT_ENABLE_STAR = false;
+    public static final int DEFAULT_BATCH_SIZE = 10000;
 	
     private final String blatPath;
 	private final String starPath;
@@ -54,6 +56,7 @@ public class MisalignedReadsFilter extends BaseFilter {
 	private final boolean omitMultipleAlignment;
 	private final boolean enableBlat;
 	private final boolean enableStar;
+    private final int batchSize;
 
     public MisalignedReadsFilter(String name) {
         this(name,
@@ -81,7 +84,9 @@ public class MisalignedReadsFilter extends BaseFilter {
              ConfigManager.getInstance().getBoolean(
                      name, "enable_blat", DEFAULT_ENABLE_BLAT),
              ConfigManager.getInstance().getBoolean(
-                     name, "enable_star", DEFAULT_ENABLE_STAR));
+                     name, "enable_star", DEFAULT_ENABLE_STAR),
+             ConfigManager.getInstance().getInt(
+                     name, "batch_size", DEFAULT_BATCH_SIZE));
     }
     
     public MisalignedReadsFilter(String name, 
@@ -89,7 +94,7 @@ public class MisalignedReadsFilter extends BaseFilter {
 			String outputDir, String referenceFile, String starReferenceDir,
             double maxMisalignmentPercentage, int minSideDistance, int minGapDistance, 
             double minOverlapPercentage, int maxNM, boolean omitMultipleAlignment, 
-			boolean enableBlat, boolean enableStar) {
+			boolean enableBlat, boolean enableStar, int batchSize) {
         super(name);
         this.blatPath = blatPath;
 		this.starPath = starPath;
@@ -110,6 +115,7 @@ public class MisalignedReadsFilter extends BaseFilter {
 		this.omitMultipleAlignment = omitMultipleAlignment;
 		this.enableBlat = enableBlat;
 		this.enableStar = enableStar;
+        this.batchSize = batchSize;
     }        
     
     @Override
@@ -137,6 +143,12 @@ public class MisalignedReadsFilter extends BaseFilter {
         return !doFilter(Collections.singletonList(site)).isEmpty();
     }
     
+    // blat and star are run once per batch
+    @Override
+    public SiteStream open(SiteStream next) {
+        return new BatchStream(next, batchSize);
+    }
+    
     @Override
     public List<Site> doFilter(List<Site> sites) {
         //System.out.println(new Date() + " " + getName() + " " + sites.size());
@@ -145,9 +157,10 @@ public class MisalignedReadsFilter extends BaseFilter {
         }
         try {
             Map<String, AlignmentEntry> alignments = null;
+            SAMRecord[][] reads = fetchReads(sites);
             
 			if (enableBlat) {
-                createFastaFile(sites);
+                createFastaFile(sites, reads);
                 int result = runBlat();
                 if (result != 0) {
                     System.out.println("blat process failed(exit code: " + result + ")");
@@ -157,7 +170,7 @@ public class MisalignedReadsFilter extends BaseFilter {
             }
 			
 			if (enableStar) {
-                createFastqFile(sites);
+                createFastqFile(sites, reads);
                 int result = runStar();
                 if (result != 0) {
                     System.out.println("star process failed(exit code: " + result + ")");
@@ -168,7 +181,8 @@ public class MisalignedReadsFilter extends BaseFilter {
             
             List<Site> results = new ArrayList<Site>();
             
-            for (Site entry : sites) {
+            for (int j = 0; j < sites.size(); ++j) {
+                Site entry = sites.get(j);
                 int misalignmentMajorCount = 0;
                 int misalignmentMinorCount = 0;
                 int[][] alignmentResultCount = new int[2][AlignmentResult.values().length];
@@ -178,7 +192,10 @@ public class MisalignedReadsFilter extends BaseFilter {
                     if (base != entry.getMajorAllele() && base != entry.getMinorAllele()) {
                         continue;
                     }
-                    SAMRecord samRecord = entry.getReads()[i];
+                    SAMRecord samRecord = reads[j][i];
+                    if (samRecord == null) {
+                        continue;
+                    }
                     int readPos = entry.getBasePos()[i];
                     String id = null;
 					AlignmentEntry alignment = null;
@@ -270,6 +287,25 @@ public class MisalignedReadsFilter extends BaseFilter {
         }
     }    
     
+    // without retained reads each site queries the bam file, so this is done once 
+    // per batch and shared by the fasta/fastq file and the counting
+    private SAMRecord[][] fetchReads(List<Site> sites) {
+        SAMRecord[][] reads = new SAMRecord[sites.size()][];
+        for (int i = 0; i < reads.length; ++i) {
+            Site site = sites.get(i);
+            reads[i] = getReads(site);
+            if (site.hasReads()) {
+                continue;
+            }
+            for (SAMRecord read : reads[i]) {
+                if (read == null) {
+                    StatsManager.count("refetch_miss");
+                }
+            }
+        }
+        return reads;
+    }
+    
     private AlignmentResult getAlignmentResult(
             SAMRecord samRecord, String chr, int readPos, AlignmentEntry alignment) {
         if (readPos < minSideDistance || 
@@ -334,16 +370,20 @@ public class MisalignedReadsFilter extends BaseFilter {
         return (double) overlap / record.getReadLength();
     }
     
-    private void createFastaFile(List<Site> sites) throws IOException {
+    private void createFastaFile(List<Site> sites, SAMRecord[][] reads) throws IOException {
         File dir = new File(outputDir);
         if (!dir.exists()) {
             dir.mkdirs();
         }
         BufferedWriter writer = new BufferedWriter(new FileWriter(tmpInputFaFile));
         Set<String> done = new HashSet<String>();
-        for (Site site : sites) {
+        for (int j = 0; j < sites.size(); ++j) {
+            Site site = sites.get(j);
             for (int i = 0; i < site.getDepth(); ++i) {
-                SAMRecord samRecord = site.getReads()[i];         
+                SAMRecord samRecord = reads[j][i];         
+                if (samRecord == null) {
+                    continue;
+                }
                 String id = samRecord.getReadName();
                 if (samRecord.getFirstOfPairFlag()) {
                     id += "/1";
@@ -371,16 +411,20 @@ public class MisalignedReadsFilter extends BaseFilter {
         writer.close();
     }
 	
-	private void createFastqFile(List<Site> sites) throws IOException {
+	private void createFastqFile(List<Site> sites, SAMRecord[][] reads) throws IOException {
         File dir = new File(outputDir);
         if (!dir.exists()) {
             dir.mkdirs();
         }
         BufferedWriter writer = new BufferedWriter(new FileWriter(tmpInputFqFile));
         Set<String> done = new HashSet<String>();
-        for (Site site : sites) {
+        for (int j = 0; j < sites.size(); ++j) {
+            Site site = sites.get(j);
             for (int i = 0; i < site.getDepth(); ++i) {
-                SAMRecord samRecord = site.getReads()[i];         
+                SAMRecord samRecord = reads[j][i];         
+                if (samRecord == null) {
+                    continue;
+                }
                 String id = samRecord.getReadName();
                 if (samRecord.getFirstOfPairFlag()) {
                     id += "_1";
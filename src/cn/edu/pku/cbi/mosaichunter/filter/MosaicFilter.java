@@ -24,9 +24,15 @@
 
 package cn.edu.pku.cbi.mosaichunter.filter;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
 
 import cn.edu.pku.cbi.mosaichunter.BamSiteReader;
 import cn.edu.pku.cbi.mosaichunter.MosaicHunterContext;
@@ -34,7 +40,10 @@ import cn.edu.pku.cbi.mosaichunter.MosaicHunterHelper;
 import cn.edu.pku.cbi.mosaichunter.Site;
 import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
 import cn.edu.pku.cbi.mosaichunter.config.Validator;
+import cn.edu.pku.cbi.mosaichunter.dbsnp.DbSnpStore;
+import cn.edu.pku.cbi.mosaichunter.math.AlleleLikelihoodCalculator;
 import cn.edu.pku.cbi.mosaichunter.math.FishersExactTest;
+import cn.edu.pku.cbi.mosaichunter.math.LogBetaTable;
 
 public class MosaicFilter extends BaseFilter {
 
@@ -65,8 +74,8 @@ public class MosaicFilter extends BaseFilter {
 			
 	public static final boolean DEFAULT_OMIT_ALT_HOMOZYGOUS = true;
 
-    private double[][] beta = null;
-    private static double[][] c = null;
+    private LogBetaTable betaTable = null;
+    private final AlleleLikelihoodCalculator likelihoodCalculator;
 
     private final int maxDepth;
     private final int alphaParam;
@@ -91,6 +100,8 @@ public class MosaicFilter extends BaseFilter {
     private final double controlFisherThreshold;
     
     private final String dbSnpFile;    
+    private final String dbSnpCacheFile;
+    private final String betaCacheDir;
     
     public final double deNovoRate;
     public final double mosaicRate;
@@ -103,10 +114,11 @@ public class MosaicFilter extends BaseFilter {
     public double[] log10_genotypeChangeRate_maleSexChr = new double[16];
     public final boolean yyxDebug = false;
 
-    private DbSnpReader dbSnpReader = null;
+    private DbSnpStore dbSnpStore = null;
     private BamSiteReader fatherSiteReader = null;
     private BamSiteReader motherSiteReader = null;
     private BamSiteReader controlSiteReader = null;
+    private Random[] resumeRandoms = null;
     private final double[][] defaultAF = new double[4][4];
 
     public MosaicFilter(String name) {
@@ -134,7 +146,9 @@ public class MosaicFilter extends BaseFilter {
             ConfigManager.getInstance().getDouble(name, "mosaic_rate", DEFAULT_MOSAIC_RATE), 
             ConfigManager.getInstance().getDouble(name, "unknown_af", DEFAULT_UNKNOWN_AF), 
             ConfigManager.getInstance().getDouble(name, "novel_af", DEFAULT_NOVEL_AF),
-            ConfigManager.getInstance().get(name, "dbsnp_file", null));
+            ConfigManager.getInstance().get(name, "dbsnp_file", null),
+            ConfigManager.getInstance().get(name, "dbsnp_cache_file", null),
+            ConfigManager.getInstance().get(name, "beta_cache_dir", null));
     }
 
     public MosaicFilter(String name, int maxDepth, int minReadQuality, int minMappingQuality, 
@@ -144,7 +158,7 @@ public class MosaicFilter extends BaseFilter {
             String motherBamFile, String motherIndexFile, String controlBamFile,
             String controlIndexFile, double controlFisherThreshold,
             double deNovoRate, double mosaicRate, double unknownAF, double novelAF,
-            String dbSnpFile) {
+            String dbSnpFile, String dbSnpCacheFile, String betaCacheDir) {
         super(name);
         this.maxDepth = maxDepth;
         this.alphaParam = alphaParam;
@@ -170,6 +184,9 @@ public class MosaicFilter extends BaseFilter {
         this.unknownAF = unknownAF;
         this.novelAF = novelAF;
         this.dbSnpFile = dbSnpFile;
+        this.dbSnpCacheFile = dbSnpCacheFile;
+        this.betaCacheDir = betaCacheDir;
+        this.likelihoodCalculator = new AlleleLikelihoodCalculator(maxDepth);
 
         // TODO: New naive mode, added by Adam_Yyx, 2015-03-09 updated
 
@@ -359,7 +376,7 @@ public class MosaicFilter extends BaseFilter {
     @Override
     public void init(MosaicHunterContext context) throws Exception {
         super.init(context);
-        if (beta == null) {
+        if (betaTable == null) {
             initDbSnp();
             initTrio();
             initBeta();
@@ -393,39 +410,79 @@ public class MosaicFilter extends BaseFilter {
                 maxDepth, minReadQuality, minMappingQuality, removeDuplicates, removeFlags);
             motherSiteReader.init();
         }
+        if (resumeRandoms != null) {
+            setRandoms(resumeRandoms);
+            resumeRandoms = null;
+        }
     }
-
-    private void initBeta() {
-        int maxI = maxDepth + 1;
-        int maxJ = maxDepth + 3;
-        if (alphaParam > 0 && betaParam > 0) {
-            maxI = maxDepth + alphaParam + betaParam + 1;
-            maxJ = maxDepth + alphaParam + betaParam + 3;
-        }
-        beta = new double[maxI][maxJ];
-        c = new double[maxI + 2][maxJ + 1];
-
-        // Beta(P,Q) = (P+Q)/(P*Q*C(P+Q,P)) = 1/(Q*C(P+Q-1,P-1))
-        for (int i = 1; i < maxI + 2; ++i) {
-            c[i][0] = 0;
-            c[i][i] = 0;
-            for (int j = 1; j <= i / 2; ++j) {
-                c[i][j] = expAdd(c[i - 1][j - 1], c[i - 1][j]);
-                c[i][i - j] = c[i][j];
+    
+    private BamSiteReader[] getSiteReaders() {
+        return new BamSiteReader[] {controlSiteReader, fatherSiteReader, motherSiteReader};
+    }
+    
+    private void setRandoms(Random[] randoms) {
+        BamSiteReader[] readers = getSiteReaders();
+        for (int i = 0; i < readers.length; ++i) {
+            if (readers[i] != null && randoms[i] != null) {
+                readers[i].setRandom(randoms[i]);
             }
         }
-        double[] logQ = new double[maxI + 2];
-        for (int i = 0; i < maxI + 2; ++i) {
-            logQ[i] = log10(i);
-        }
-        for (int i = 0; i < maxI; ++i) {
-            for (int j = 0; j <= i + 1; ++j) {
-                int p = j + 1;
-                int q = i + 3 - p;
-                beta[i][j] = -logQ[q] - c[p + q - 1][p - 1];
+    }
+    
+    @Override
+    public void setRandomSeed(long seed) {
+        for (BamSiteReader reader : getSiteReaders()) {
+            if (reader != null) {
+                reader.setRandom(new Random(seed));
             }
         }
     }
+    
+    @Override
+    public void writeState(DataOutput out) throws IOException {
+        super.writeState(out);
+        BamSiteReader[] readers = getSiteReaders();
+        Random[] randoms = new Random[readers.length];
+        for (int i = 0; i < readers.length; ++i) {
+            randoms[i] = readers[i] == null ? null : readers[i].getRandom();
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream objectOut = new ObjectOutputStream(buffer);
+        objectOut.writeObject(randoms);
+        objectOut.close();
+        out.writeInt(buffer.size());
+        out.write(buffer.toByteArray());
+    }
+    
+    @Override
+    public void readState(DataInput in, boolean merge) throws IOException {
+        super.readState(in, merge);
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        if (merge) {
+            return;
+        }
+        ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            resumeRandoms = (Random[]) objectIn.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("invalid state of filter " + getName(), e);
+        } finally {
+            objectIn.close();
+        }
+        if (controlSiteReader != null || fatherSiteReader != null || motherSiteReader != null) {
+            setRandoms(resumeRandoms);
+            resumeRandoms = null;
+        }
+    }
+
+    private void initBeta() throws IOException {
+        File cacheDir = null;
+        if (betaCacheDir != null && !betaCacheDir.trim().isEmpty()) {
+            cacheDir = new File(betaCacheDir.trim());
+        }
+        betaTable = LogBetaTable.getInstance(maxDepth, alphaParam, betaParam, cacheDir);
+    }
 
     private void initDbSnp() throws Exception {
         for (int i = 0; i < 4; ++i) {
@@ -435,16 +492,32 @@ public class MosaicFilter extends BaseFilter {
         }
 
         if (dbSnpFile != null && !dbSnpFile.trim().isEmpty()) {
-            BufferedReader reader = new BufferedReader(new FileReader(dbSnpFile));
-            dbSnpReader = new DbSnpReader(reader);
+            File file = new File(dbSnpFile.trim());
+            if (DbSnpStore.isStore(file)) {
+                dbSnpStore = DbSnpStore.open(file);
+            } else {
+                dbSnpStore = DbSnpStore.open(file, getDbSnpCacheFile(file));
+            }
+        }
+    }
+    
+    private File getDbSnpCacheFile(File file) {
+        if (dbSnpCacheFile != null && !dbSnpCacheFile.trim().isEmpty()) {
+            return new File(dbSnpCacheFile.trim());
+        }
+        String odName = ConfigManager.getInstance().get(null, "output_dir", ".");
+        File od = new File(odName);
+        if (!od.isDirectory()) {
+            od.mkdirs();
         }
+        return new File(od, file.getName() + ".mhsnp");
     }
 
     @Override
     public void close() throws Exception {
-        if (dbSnpReader != null && dbSnpReader.reader != null) {
-            dbSnpReader.reader.close();
-            dbSnpReader.reader = null;
+        if (dbSnpStore != null) {
+            dbSnpStore.close();
+            dbSnpStore = null;
         }
         if (fatherSiteReader != null) {
             fatherSiteReader.close();
@@ -454,6 +527,11 @@ public class MosaicFilter extends BaseFilter {
             motherSiteReader.close();
             motherSiteReader = null;
         }
+        if (controlSiteReader != null) {
+            controlSiteReader.close();
+            controlSiteReader = null;
+        }
+        super.close();
     }
 
     @Override
@@ -948,42 +1026,10 @@ public class MosaicFilter extends BaseFilter {
         byte majorAllele = getBase(majorId);
         byte minorAllele = getBase(minorId);
 
-        double[] p = new double[site.getDepth() + 1];
-        p[0] = 1;
-        int depth = 0;
-        boolean useExp = false;
-        for (int i = 0; i < site.getDepth(); ++i) {
-            double q = Math.pow(10.0, site.getBaseQualities()[i] / -10.0);
-            double qMajor, qMinor;
-            if (site.getBases()[i] == majorAllele) {
-                qMajor = 1 - q;
-                qMinor = q;
-            } else if (site.getBases()[i] == minorAllele) {
-                qMajor = q;
-                qMinor = 1 - q;
-            } else {
-                continue;
-            }
-            depth++;
-            if (useExp) {
-                qMajor = log10(qMajor);
-                qMinor = log10(qMinor);
-            }
-            p[depth] = useExp ? p[depth - 1] + qMajor : p[depth - 1] * qMajor;
-            if (calcMosaic) {
-                for (int j = depth - 1; j > 0; --j) {
-                    p[j] = useExp ? expAdd(p[j - 1] + qMajor, p[j] + qMinor) : p[j - 1] * qMajor + p[j] * (qMinor);
-                }
-            }
-            p[0] = useExp ? p[0] + qMinor : p[0] * qMinor;
-
-            if (!useExp && (p[0] < 1e300 || p[depth] < 1e300 || i == site.getDepth() - 1)) {
-                for (int k = 0; k <= depth; ++k) {
-                    p[k] = log10(p[k]);
-                }
-                useExp = true;
-            }
-        }
+        int depth = likelihoodCalculator.calc(
+                site.getBases(), site.getBaseQualities(), site.getDepth(), 
+                majorAllele, minorAllele, calcMosaic);
+        double[] p = likelihoodCalculator.getLikelihood();
 
         double major = p[depth];
         double minor = p[0];
@@ -992,15 +1038,15 @@ public class MosaicFilter extends BaseFilter {
         if (alphaParam > 0 && betaParam > 0 && alphaParam + betaParam > 2) {
             het = LOGZERO;
             for (int r = 0; r <= depth; ++r) {
-                het = expAdd(het, p[r] + beta[alphaParam + betaParam + depth - 3][alphaParam + r - 1]
-                        - beta[alphaParam + betaParam - 3][alphaParam - 1]);
+                het = expAdd(het, p[r] + betaTable.get(alphaParam + betaParam + depth - 3, alphaParam + r - 1)
+                        - betaTable.get(alphaParam + betaParam - 3, alphaParam - 1));
             }
         }
 
         double mosaic = LOGZERO;
         if (calcMosaic) {
             for (int r = 0; r <= depth; ++r) {
-                mosaic = expAdd(mosaic, p[r] + beta[depth - 1][r]);
+                mosaic = expAdd(mosaic, p[r] + betaTable.get(depth - 1, r));
                 // System.out.println(r + " " + format.format(Math.pow(10, p[r])));
             }
         }
@@ -1032,8 +1078,8 @@ public class MosaicFilter extends BaseFilter {
 
     public double[] getAF(Site site) {
         double[] af = null;
-        if (dbSnpReader != null) {
-            af = dbSnpReader.getAF(site.getRefName(), site.getRefPos());
+        if (dbSnpStore != null) {
+            af = dbSnpStore.getAF(site.getRefName(), site.getRefPos(), novelAF, unknownAF);
         }
         if (af == null) {
             int refId = getBaseId((char) site.getRef());
@@ -1085,102 +1131,4 @@ public class MosaicFilter extends BaseFilter {
         return MosaicHunterHelper.ID_TO_BASE[id];
     }
 
-    private class DbSnpReader {
-        private BufferedReader reader;
-        private String currentLine = null;
-        private String[] currentTokens = null;
-        private String currentName = null;
-        private int currentChrId = -1;
-        private long currentPos = 0;
-        private boolean done = false;
-
-        public DbSnpReader(BufferedReader reader) {
-            this.reader = reader;
-        }
-
-        public double[] getAF(String chrName, long pos) {
-            int chrId = getContext().getReferenceManager().getReferenceId(chrName);
-            if (chrId < 0) {
-                return null;
-            }
-
-            while (currentChrId < chrId && !done) {
-                nextLine();
-            }
-
-            if (done || currentChrId != chrId || pos < currentPos) {
-                return null;
-            }
-
-            while (pos > currentPos && chrId == currentChrId && !done) {
-                nextLine();
-            }
-            if (!done && pos == currentPos && chrId == currentChrId) {
-                return parseDbSnp(currentTokens);
-            }
-            return null;
-        }
-
-        private void nextLine() {
-            for (;;) {
-                try {
-                    currentLine = reader.readLine();
-                } catch (IOException ioe) {
-                    ioe.printStackTrace();
-                    done = true;
-                    return;
-                }
-                if (currentLine == null) {
-                    done = true;
-                    return;
-                }
-                if (currentLine.isEmpty()) {
-                    continue;
-                }
-                currentTokens = currentLine.split("\\t");
-                if (!currentTokens[0].equals(currentName)) {
-                    currentName = currentTokens[0];
-                    currentChrId = getContext().getReferenceManager().getReferenceId(currentName);
-                    if (currentChrId < 0) {
-                        done = true;
-                        return;
-                    }
-                }
-                currentPos = Long.parseLong(currentTokens[1]);
-                break;
-            }
-        }
-
-        private double[] parseDbSnp(String[] tokens) {
-            if (tokens.length != 6) {
-                return null;
-            }
-            if (tokens[3].length() != 1 || !"ACGT".contains(tokens[3])) {
-                return null;
-            }
-            double rate = 0;
-            try {
-                rate = Double.parseDouble(tokens[5]);
-            } catch (Exception e) {
-                return null;
-            }
-
-            double[] af = new double[] { novelAF, novelAF, novelAF, novelAF };
-            af[getBaseId(tokens[3].charAt(0))] = rate > 0 ? 1 - rate : 1;
-            String[] altTokens = tokens[4].split(",");
-            int altCount = 0;
-            for (String alt : altTokens) {
-                if (alt.length() == 1 && "ACGT".contains(alt)) {
-                    af[getBaseId(alt.charAt(0))] = rate > 0 ? rate : unknownAF;
-                    altCount++;
-                }
-            }
-            if (altCount == 0) {
-                return null;
-            }
-            return af;
-        }
-
-    }
-
 }
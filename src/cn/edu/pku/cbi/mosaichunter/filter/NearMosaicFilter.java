@@ -24,8 +24,8 @@
 
 package cn.edu.pku.cbi.mosaichunter.filter;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 import cn.edu.pku.cbi.mosaichunter.Site;
 import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
@@ -56,46 +56,64 @@ public class NearMosaicFilter extends BaseFilter {
     }
     
     @Override
-    public List<Site> doFilter(List<Site> sites) {
-        List<Site> results = new ArrayList<Site>();
-        List<Site> pendingSites = new ArrayList<Site>();
+    public SiteStream open(SiteStream next) {
+        return new NearMosaicStream(next);
+    }
+    
+    // holds the sites after the last mosaic site that are still within distance 
+    // of a following one
+    private class NearMosaicStream extends FilterStream {
+        
+        private final Queue<Site> pendingSites = new ArrayDeque<Site>();
+        private String lastChrName = "";
+        private long lastMosaicPos = -1;
+        
+        public NearMosaicStream(SiteStream next) {
+            super(next);
+        }
         
-        String lastChrName = "";
-        long lastMosaicPos = -1;
-        for (Site site : sites) {
+        @Override
+        protected void process(Site site) {
             String chrName = site.getRefName();
             if (!chrName.equals(lastChrName)) {
-                pendingSites = new ArrayList<Site>();
+                flush();
                 lastMosaicPos = -1;
                 lastChrName = chrName;
-            }      
+            }
+            while (!pendingSites.isEmpty() && 
+                   site.getRefPos() - pendingSites.peek().getRefPos() > distance) {
+                reject(pendingSites.poll());
+            }
             if (auxiliaryFilterName == null || 
                 !site.getPassedFilters().contains(auxiliaryFilterName)) {
-                // add sites before current mosaic site
-                for (Site pendingSite : pendingSites) {
-                    if (site.getRefPos() - pendingSite.getRefPos() <= distance) {
-                        pendingSite.setMetadata(
-                                getName(), 
-                                new Object[] {pendingSite.getRefPos() - site.getRefPos()});
-                        results.add(pendingSite);
-                    }
+                // pass sites before current mosaic site
+                while (!pendingSites.isEmpty()) {
+                    Site pendingSite = pendingSites.poll();
+                    pendingSite.setMetadata(
+                            getName(), 
+                            new Object[] {pendingSite.getRefPos() - site.getRefPos()});
+                    pass(pendingSite);
                 }
-                // add current mosaic site
+                // pass current mosaic site
                 site.setMetadata(getName(), new Object[] {0L});
-                results.add(site);
+                pass(site);
                 
                 lastMosaicPos = site.getRefPos();
-                pendingSites = new ArrayList<Site>();
             } else if (lastMosaicPos > -1 && site.getRefPos() - lastMosaicPos <= distance) {
-                // add site after last mosaic site
+                // pass site after last mosaic site
                 site.setMetadata(getName(), new Object[] {site.getRefPos() - lastMosaicPos});
-                results.add(site);
+                pass(site);
             } else {
                 pendingSites.add(site);
             }
-            
         }
-        return results;   
+        
+        @Override
+        protected void flush() {
+            while (!pendingSites.isEmpty()) {
+                reject(pendingSites.poll());
+            }
+        }
     }
 
 }
@@ -24,8 +24,9 @@
 
 package cn.edu.pku.cbi.mosaichunter.filter;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 import cn.edu.pku.cbi.mosaichunter.MosaicHunterContext;
 import cn.edu.pku.cbi.mosaichunter.Site;
@@ -68,6 +69,57 @@ public class OrFilter extends BaseFilter {
         for (Filter filter : filters) {
             filter.close();
         }
+        super.close();
+    }
+    
+    @Override
+    public void setOutputDir(String outputDir) throws IOException {
+        super.setOutputDir(outputDir);
+        for (Filter filter : filters) {
+            filter.setOutputDir(outputDir);
+        }
+    }
+    
+    @Override
+    public void mergeStats(Filter filter) {
+        super.mergeStats(filter);
+        if (filter instanceof OrFilter) {
+            Filter[] others = ((OrFilter) filter).getFilters();
+            for (int i = 0; i < filters.length && i < others.length; ++i) {
+                filters[i].mergeStats(others[i]);
+            }
+        }
+    }
+    
+    @Override
+    public void clearStats() {
+        super.clearStats();
+        for (Filter filter : filters) {
+            filter.clearStats();
+        }
+    }
+    
+    @Override
+    public void setRandomSeed(long seed) {
+        for (Filter filter : filters) {
+            filter.setRandomSeed(seed);
+        }
+    }
+    
+    @Override
+    public void writeState(DataOutput out) throws IOException {
+        super.writeState(out);
+        for (Filter filter : filters) {
+            filter.writeState(out);
+        }
+    }
+    
+    @Override
+    public void readState(DataInput in, boolean merge) throws IOException {
+        super.readState(in, merge);
+        for (Filter filter : filters) {
+            filter.readState(in, merge);
+        }
     }
     
     public Filter[] getFilters() {
@@ -93,15 +145,4 @@ public class OrFilter extends BaseFilter {
         }
         return false;
     }
-    
-    @Override
-    public List<Site> doFilter(List<Site> sites) {
-        List<Site> results = new ArrayList<Site>();
-        for (Site site : sites) {
-            if (doFilter(site)) {
-                results.add(site);
-            }
-        }
-        return results;
-    }    
 }
@@ -24,20 +24,12 @@
 
 package cn.edu.pku.cbi.mosaichunter.filter;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 import cn.edu.pku.cbi.mosaichunter.MosaicHunterContext;
 import cn.edu.pku.cbi.mosaichunter.Site;
 import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
 import cn.edu.pku.cbi.mosaichunter.config.Validator;
 
-public class RegionFilter extends BaseFilter {
+public class RegionFilter extends BaseFilter implements MaskableFilter {
 
     public static final int DEFAULT_EXPANSION = 5;
     public static final boolean DEFAULT_INCLUDE = false;
@@ -46,7 +38,8 @@ public class RegionFilter extends BaseFilter {
     private final int expansion;
     private final boolean include;
     
-    private final Map<String, List<Region>> regions = new HashMap<String, List<Region>>();
+    private RegionIndex regions = null;
+    private RegionIndex.Cursor cursor = null;
     
     public RegionFilter(String name) {
         this(name,
@@ -80,86 +73,37 @@ public class RegionFilter extends BaseFilter {
         if (bedFile == null || bedFile.isEmpty()) {
             return;
         }
-        BufferedReader reader = null; 
-        try {
-            reader = new BufferedReader(new FileReader(bedFile));
-            for(;;) {
-                String line =  reader.readLine();
-               if (line == null) {
-                   break;
-               }
-               String[] tokens = line.split("\\t");
-               if (tokens.length < 3) {
-                   continue;
-               }
-               String chrName = tokens[0];
-               Region region = new Region(
-                       Long.parseLong(tokens[1]) + 1 - expansion,
-                       Long.parseLong(tokens[2]) + expansion);
-               if (region.start < 0) {
-                   region.start = 0;
-               }
-               if (region.end < region.start) {
-                   continue;
-               }
-               List<Region> r = regions.get(chrName);
-               if (r == null) {
-                   r = new ArrayList<Region>();
-                   regions.put(chrName, r);
-               }
-               r.add(region);
-        
-            }
-        } finally {
-            if (reader != null) {
-                reader.close();
+        regions = RegionIndex.getInstance(bedFile, expansion, context.getReferenceManager());
+        cursor = regions.cursor();
+    }
+    
+    public ExcludeMask createExcludeMask() {
+        if (include || regions == null) {
+            return null;
+        }
+        final RegionIndex.Cursor maskCursor = regions.cursor();
+        return new ExcludeMask() {
+            public boolean isExcluded(int refId, long pos) {
+                return maskCursor.find(refId, pos) >= 0;
             }
-        }    
+        };
     }
     
     @Override
     public boolean doFilter(Site site) { 
         boolean inRegion = false;
-        List<Region> r = regions.get(site.getRefName());
-        if (r != null) {
-            Region pos = new Region(site.getRefPos(), site.getRefPos());        
-            int index = Collections.binarySearch(r, pos);
-            if (index < 0) {
-                index = -index - 2;
-            }
+        if (cursor != null) {
+            int index = cursor.find(site.getRefId(), site.getRefPos());
             if (index >= 0) {   
-                Region region = r.get(index);
-                inRegion = (region.end >= site.getRefPos());
-                if (inRegion) {
-                    site.setMetadata(
-                            getName(),
-                            new Object[] {
-                                site.getRefName(),
-                                region.start,
-                                region.end});
-                }
+                inRegion = true;
+                site.setMetadata(
+                        getName(),
+                        new Object[] {
+                            site.getRefName(),
+                            regions.getStart(site.getRefId(), index),
+                            regions.getEnd(site.getRefId(), index)});
             }
         }
         return inRegion == include;
     }
-    
-    private class Region implements Comparable<Region> {
-        private long start;
-        private long end;
-        
-        public Region(long start, long end) {
-            this.start = start;
-            this.end = end;
-        }
-        
-        public int compareTo(Region that) {
-            if (this.start == that.start) {
-                return 0;
-            } else if (this.start < that.start) {
-                return -1;
-            } else {
-                return 1;
-            }
-        }
-    }
 }
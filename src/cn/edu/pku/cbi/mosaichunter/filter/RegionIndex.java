@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package cn.edu.pku.cbi.mosaichunter.filter;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import cn.edu.pku.cbi.mosaichunter.reference.ReferenceManager;
+
+/**
+ * Regions of a BED file as merged, sorted starts and ends per reference id, 
+ * 1-based and inclusive. Instances are shared by the filters of all threads.
+ */
+public class RegionIndex {
+
+    private static final int MAX_CURSOR_STEPS = 16;
+    private static final long[] EMPTY = new long[0];
+    
+    private static final Map<String, RegionIndex> instances = new HashMap<String, RegionIndex>();
+    
+    private final long[][] starts;
+    private final long[][] ends;
+    
+    private RegionIndex(long[][] starts, long[][] ends) {
+        this.starts = starts;
+        this.ends = ends;
+    }
+    
+    public static synchronized RegionIndex getInstance(
+            String bedFile, int expansion, ReferenceManager referenceManager) throws IOException {
+        String key = bedFile + "\t" + expansion;
+        RegionIndex index = instances.get(key);
+        if (index == null) {
+            index = load(bedFile, expansion, referenceManager);
+            instances.put(key, index);
+        }
+        return index;
+    }
+    
+    // BED regions are 0-based and half-open, each one is expanded on both sides
+    public static RegionIndex load(
+            String bedFile, int expansion, ReferenceManager referenceManager) throws IOException {
+        int n = referenceManager.getReferenceNumber();
+        long[][] starts = new long[n][];
+        long[][] ends = new long[n][];
+        int[] sizes = new int[n];
+        Arrays.fill(starts, EMPTY);
+        Arrays.fill(ends, EMPTY);
+        
+        BufferedReader reader = new BufferedReader(new FileReader(bedFile), 1 << 20);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split("\\t");
+                if (tokens.length < 3) {
+                    continue;
+                }
+                int refId = referenceManager.getReferenceId(tokens[0]);
+                if (refId < 0) {
+                    continue;
+                }
+                long start = Math.max(0, Long.parseLong(tokens[1]) + 1 - expansion);
+                long end = Long.parseLong(tokens[2]) + expansion;
+                if (end < start) {
+                    continue;
+                }
+                int size = sizes[refId];
+                if (size == starts[refId].length) {
+                    starts[refId] = Arrays.copyOf(starts[refId], Math.max(16, size * 2));
+                    ends[refId] = Arrays.copyOf(ends[refId], Math.max(16, size * 2));
+                }
+                starts[refId][size] = start;
+                ends[refId][size] = end;
+                sizes[refId]++;
+            }
+        } finally {
+            reader.close();
+        }
+        
+        for (int i = 0; i < n; ++i) {
+            merge(starts, ends, i, sizes[i]);
+        }
+        return new RegionIndex(starts, ends);
+    }
+    
+    // the union of the regions, from the starts and the ends sorted independently: 
+    // a merged region ends wherever the next start is after the current end
+    private static void merge(long[][] starts, long[][] ends, int refId, int size) {
+        long[] s = starts[refId];
+        long[] e = ends[refId];
+        Arrays.sort(s, 0, size);
+        Arrays.sort(e, 0, size);
+        int m = 0;
+        for (int i = 0; i < size; ++i) {
+            if (i == 0 || s[i] > e[i - 1]) {
+                s[m] = s[i];
+                e[m] = e[i];
+                m++;
+            } else {
+                e[m - 1] = e[i];
+            }
+        }
+        starts[refId] = Arrays.copyOf(s, m);
+        ends[refId] = Arrays.copyOf(e, m);
+    }
+    
+    public long getStart(int refId, int i) {
+        return starts[refId][i];
+    }
+    
+    public long getEnd(int refId, int i) {
+        return ends[refId][i];
+    }
+    
+    // index of the region containing pos, or -1
+    public int find(int refId, long pos) {
+        if (refId < 0 || refId >= starts.length) {
+            return -1;
+        }
+        int i = floor(starts[refId], 0, starts[refId].length, pos);
+        return i >= 0 && ends[refId][i] >= pos ? i : -1;
+    }
+    
+    public Cursor cursor() {
+        return new Cursor();
+    }
+    
+    // index of the last value <= key in [from, to), or from - 1
+    private static int floor(long[] values, int from, int to, long key) {
+        int low = from;
+        int high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+    
+    /**
+     * Lookups of one thread, which are fastest when the positions come in 
+     * about increasing order: the cursor steps from the last region found and 
+     * only falls back to binary search for a long jump.
+     */
+    public class Cursor {
+        
+        private int refId = -1;
+        private int index = -1;
+        
+        private Cursor() {
+        }
+        
+        // index of the region containing pos, or -1
+        public int find(int refId, long pos) {
+            if (refId < 0 || refId >= starts.length) {
+                return -1;
+            }
+            long[] s = starts[refId];
+            int i = index;
+            if (refId != this.refId) {
+                i = floor(s, 0, s.length, pos);
+            } else if (i >= 0 && s[i] > pos) {
+                int steps = 0;
+                while (i >= 0 && s[i] > pos) {
+                    if (++steps > MAX_CURSOR_STEPS) {
+                        i = floor(s, 0, i, pos);
+                        break;
+                    }
+                    i--;
+                }
+            } else {
+                int steps = 0;
+                while (i + 1 < s.length && s[i + 1] <= pos) {
+                    if (++steps > MAX_CURSOR_STEPS) {
+                        i = floor(s, i + 1, s.length, pos);
+                        break;
+                    }
+                    i++;
+                }
+            }
+            this.refId = refId;
+            this.index = i;
+            return i >= 0 && ends[refId][i] >= pos ? i : -1;
+        }
+    }
+}
@@ -24,6 +24,8 @@
 
 package cn.edu.pku.cbi.mosaichunter.filter;
 
+import java.util.Random;
+
 import net.sf.samtools.SAMRecord;
 import cn.edu.pku.cbi.mosaichunter.BamSiteReader;
 import cn.edu.pku.cbi.mosaichunter.MosaicHunterContext;
@@ -100,9 +102,15 @@ public class SysCallFilter extends BaseFilter {
         siteReader.init();
     }
     
+    @Override
+    public void setRandomSeed(long seed) {
+        siteReader.setRandom(new Random(seed));
+    }
+    
     @Override
     public void close() throws Exception {
         siteReader.close();
+        super.close();
     }
     
     @Override
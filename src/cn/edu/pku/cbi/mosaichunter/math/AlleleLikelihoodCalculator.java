@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.math;
+
+/**
+ * Log10 likelihoods of observing the bases of a site given the number of reads 
+ * that truly carry the major allele. The recurrence runs in linear space with a 
+ * shared power-of-two scale instead of adding logs for every cell. The all-major 
+ * and all-minor entries are exact sums of tabulated log10 probabilities. The other 
+ * entries agree with a log-space recurrence to within 1e-9 (log10 units) for 
+ * depths up to 500 as long as they are within 100 orders of magnitude of the 
+ * largest entry; smaller ones lose precision or become -Infinity, which does not 
+ * change any sum built with MosaicFilter.expAdd. Instances keep their buffers and 
+ * are not thread-safe.
+ */
+public class AlleleLikelihoodCalculator {
+
+    private static final double[] ERROR_PROB = new double[256];
+    private static final double[] CORRECT_PROB = new double[256];
+    private static final double[] LOG10_ERROR_PROB = new double[256];
+    private static final double[] LOG10_CORRECT_PROB = new double[256];
+    
+    private static final double TINY = Math.scalb(1.0, -600);
+    private static final double BIG = Math.scalb(1.0, 600);
+    private static final double LOG10_BIG = 600 * Math.log10(2);
+    
+    static {
+        for (int i = 0; i < 256; ++i) {
+            byte quality = (byte) i;
+            double q = Math.pow(10.0, quality / -10.0);
+            ERROR_PROB[i] = q;
+            CORRECT_PROB[i] = Math.max(1 - q, 0);
+            LOG10_ERROR_PROB[i] = Math.log10(q);
+            LOG10_CORRECT_PROB[i] = Math.log10(Math.max(1 - q, 0));
+        }
+    }
+    
+    private double[] p;
+    
+    public AlleleLikelihoodCalculator(int initialDepth) {
+        p = new double[initialDepth + 1];
+    }
+    
+    public double[] getLikelihood() {
+        return p;
+    }
+    
+    // fills getLikelihood()[0 .. depth] indexed by the number of major allele reads
+    // and returns the depth, i.e. the number of bases that are either allele. When 
+    // no base matches, the single entry is 1 rather than a log value, as it has
+    // always been. Without calcMosaic only the all-major and all-minor entries are
+    // updated, entry k keeps the value it had when it was the all-major entry.
+    public int calc(byte[] bases, byte[] baseQualities, int n, 
+            byte majorAllele, byte minorAllele, boolean calcMosaic) {
+        if (p.length < n + 1) {
+            p = new double[n + 1];
+        }
+        p[0] = 1;
+        if (!calcMosaic) {
+            return calcEnds(bases, baseQualities, n, majorAllele, minorAllele);
+        }
+        
+        int depth = 0;
+        int scale = 0;
+        double logMajor = 0;
+        double logMinor = 0;
+        for (int i = 0; i < n; ++i) {
+            int quality = baseQualities[i] & 0xFF;
+            double qMajor;
+            double qMinor;
+            if (bases[i] == majorAllele) {
+                qMajor = CORRECT_PROB[quality];
+                qMinor = ERROR_PROB[quality];
+                logMajor += LOG10_CORRECT_PROB[quality];
+                logMinor += LOG10_ERROR_PROB[quality];
+            } else if (bases[i] == minorAllele) {
+                qMajor = ERROR_PROB[quality];
+                qMinor = CORRECT_PROB[quality];
+                logMajor += LOG10_ERROR_PROB[quality];
+                logMinor += LOG10_CORRECT_PROB[quality];
+            } else {
+                continue;
+            }
+            depth++;
+            double max = p[depth] = p[depth - 1] * qMajor;
+            for (int j = depth - 1; j > 0; --j) {
+                double v = p[j - 1] * qMajor + p[j] * qMinor;
+                p[j] = v;
+                if (v > max) {
+                    max = v;
+                }
+            }
+            p[0] *= qMinor;
+            if (p[0] > max) {
+                max = p[0];
+            }
+            if (max < TINY && max > 0) {
+                for (int j = 0; j <= depth; ++j) {
+                    p[j] *= BIG;
+                }
+                scale++;
+            }
+        }
+        if (depth == 0) {
+            return 0;
+        }
+        double offset = -scale * LOG10_BIG;
+        for (int j = 1; j < depth; ++j) {
+            p[j] = Math.log10(p[j]) + offset;
+        }
+        p[0] = logMinor;
+        p[depth] = logMajor;
+        return depth;
+    }
+    
+    private int calcEnds(byte[] bases, byte[] baseQualities, int n, 
+            byte majorAllele, byte minorAllele) {
+        int depth = 0;
+        for (int i = 0; i < n; ++i) {
+            int quality = baseQualities[i] & 0xFF;
+            double logQMajor;
+            double logQMinor;
+            if (bases[i] == majorAllele) {
+                logQMajor = LOG10_CORRECT_PROB[quality];
+                logQMinor = LOG10_ERROR_PROB[quality];
+            } else if (bases[i] == minorAllele) {
+                logQMajor = LOG10_ERROR_PROB[quality];
+                logQMinor = LOG10_CORRECT_PROB[quality];
+            } else {
+                continue;
+            }
+            depth++;
+            if (depth == 1) {
+                p[1] = logQMajor;
+                p[0] = logQMinor;
+            } else {
+                p[depth] = p[depth - 1] + logQMajor;
+                p[0] += logQMinor;
+            }
+        }
+        return depth;
+    }
+}
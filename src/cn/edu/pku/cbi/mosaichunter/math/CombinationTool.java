@@ -24,19 +24,21 @@
 
 package cn.edu.pku.cbi.mosaichunter.math;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * log(n!) from a table that grows in chunks up to the largest n asked for, and 
+ * from Stirling's series beyond MAX_EXACT. The table is replaced as a whole when 
+ * it grows, so readers need no lock.
+ */
 public class CombinationTool {
     
-    public static final int DEFAULT_MAX = 10000000;
-    public static final int DEFAULT_MAX_CACHED = 2000;
+    public static final int CHUNK_SIZE = 1 << 12;
+    public static final int MAX_EXACT = 1 << 20;
     
-    private static double[] logFactorial = new double[DEFAULT_MAX + 1];
-
-    static {
-        logFactorial[0] = 0.0;
-        for (int i = 1; i < logFactorial.length; i++) {
-            logFactorial[i] = logFactorial[i-1] + Math.log(i);
-        }
-    }
+    private static final AtomicReference<double[]> logFactorial = 
+            new AtomicReference<double[]>(new double[] {0.0});
 
     private CombinationTool() {
         // private constructor 
@@ -49,12 +51,50 @@ public class CombinationTool {
         if (n < 0) {
             throw new IllegalArgumentException("n(" + n + ") is less than zero");            
         }
-        if (m < logFactorial.length) {
-            return logFactorial[m] - logFactorial[m - n] - logFactorial[n];
-        } else {
-            throw new IllegalArgumentException(
-                    "m(" + m + ") exceeds limit " +  logFactorial.length);            
+        return logFactorial(m) - logFactorial(m - n) - logFactorial(n);
+    }
+    
+    public static double logFactorial(int n) {
+        double[] table = logFactorial.get();
+        if (n < table.length) {
+            if (n < 0) {
+                throw new IllegalArgumentException("n(" + n + ") is less than zero");
+            }
+            return table[n];
         }
+        if (n > MAX_EXACT) {
+            return stirling(n);
+        }
+        return grow(n)[n];
+    }
+    
+    private static double[] grow(int n) {
+        for (;;) {
+            double[] table = logFactorial.get();
+            if (n < table.length) {
+                return table;
+            }
+            // the same running sum as a table built at once, whichever thread extends it
+            int length = Math.min((n / CHUNK_SIZE + 1) * CHUNK_SIZE, MAX_EXACT + 1);
+            double[] newTable = Arrays.copyOf(table, length);
+            for (int i = table.length; i < length; i++) {
+                newTable[i] = newTable[i - 1] + Math.log(i);
+            }
+            if (logFactorial.compareAndSet(table, newTable)) {
+                return newTable;
+            }
+        }
+    }
+    
+    // the first omitted term is below 1 / (1680 n^7); the difference to the 
+    // running sum of logs is its rounding drift, about 2.5e-7 at MAX_EXACT and 
+    // below 1e-5 up to n = 10^7
+    private static double stirling(int n) {
+        double x = n;
+        double r = 1.0 / x;
+        double r2 = r * r;
+        return x * Math.log(x) - x + 0.5 * Math.log(2 * Math.PI * x) 
+                + r * (1.0 / 12 - r2 * (1.0 / 360 - r2 / 1260));
     }
    
-}
+}
\ No newline at end of file
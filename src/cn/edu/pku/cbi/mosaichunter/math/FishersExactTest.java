@@ -24,13 +24,90 @@
 
 package cn.edu.pku.cbi.mosaichunter.math;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import cn.edu.pku.cbi.mosaichunter.StatsManager;
+import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
+
+/**
+ * Two-sided Fisher's exact test on 2x2 tables. The p-values of tables with at 
+ * most max_cached_total reads are kept in an array indexed by the table itself, 
+ * so the filters that test the same small tables over and over compute each 
+ * only once. Larger tables walk the hypergeometric distribution by the ratio 
+ * of neighbouring terms instead.
+ */
 public class FishersExactTest {
 
+    public static final int DEFAULT_MAX_CACHED_TOTAL = 64;
+    
+    // C(132, 4) slots, about 12 million longs or 97MB
+    public static final int MAX_CACHED_TOTAL = 128;
+    
+    // raw bits of a NaN that the tests never return
+    private static final long EMPTY = 0x7ff8dead00000000L;
+    
     private FishersExactTest() {
         // private constructor 
     }
     
+    private static int getMaxCachedTotal() {
+        return ConfigManager.getInstance().getInt(
+                "fishers_exact_test", "max_cached_total", DEFAULT_MAX_CACHED_TOTAL);
+    }
+    
+    public static boolean validate() {
+        int n = getMaxCachedTotal();
+        if (n > MAX_CACHED_TOTAL) {
+            System.out.println("Error - fishers_exact_test.max_cached_total is invalid: " + n + 
+                    " (at most " + MAX_CACHED_TOTAL + ")");
+            return false;
+        }
+        return true;
+    }
+    
     public static double twoSided(int a, int b, int c, int d) {
+        if (a < 0 || b < 0 || c < 0 || d < 0) {
+            throw new IllegalArgumentException(
+                    "negative count in table " + a + "," + b + "," + c + "," + d);
+        }
+        if (a + b + c + d > Cache.maxCachedTotal) {
+            StatsManager.count("fisher_uncached");
+            return twoSidedByRatio(a, b, c, d);
+        }
+        int i = (int) getIndex(a + b + c + d, a, b, c);
+        long bits = Cache.slots.get(i);
+        if (bits != EMPTY) {
+            StatsManager.count("fisher_cache_hit");
+            return Double.longBitsToDouble(bits);
+        }
+        StatsManager.count("fisher_cache_miss");
+        double p = twoSidedBySum(a, b, c, d);
+        Cache.slots.set(i, Double.doubleToRawLongBits(p));
+        return p;
+    }
+    
+    // tables of the same total are consecutive, ordered by a, b and then c
+    private static long getIndex(long n, long a, long b, long c) {
+        long r = n - a;
+        return choose4(n + 3) 
+                + choose3(n + 3) - choose3(r + 3) 
+                + choose2(r + 2) - choose2(r - b + 2) 
+                + c;
+    }
+    
+    private static long choose2(long x) {
+        return x * (x - 1) / 2;
+    }
+    
+    private static long choose3(long x) {
+        return x * (x - 1) * (x - 2) / 6;
+    }
+    
+    private static long choose4(long x) {
+        return x * (x - 1) * (x - 2) * (x - 3) / 24;
+    }
+    
+    private static double twoSidedBySum(int a, int b, int c, int d) {
         if (a > c) {
             int tmp = a;
             a = c;
@@ -74,5 +151,99 @@ public class FishersExactTest {
         }    
         return p;
     }
-   
-}
+    
+    /**
+     * The same test with the terms taken relative to the most likely table: 
+     * P(x + 1) / P(x) = (ab - x)(ac - x) / ((x + 1)(cd - ac + x + 1)), where x 
+     * is the top-left cell. Tables up to the observed one, with the relative 
+     * tolerance of twoSidedBySum, are summed.
+     */
+    private static double twoSidedByRatio(int a, int b, int c, int d) {
+        int ab = a + b;
+        int cd = c + d;
+        int ac = a + c;
+        int n = ab + cd;
+        int min = Math.max(0, ac - cd);
+        int max = Math.min(ab, ac);
+        int mode = (int) ((double) (ab + 1) * (ac + 1) / (n + 2));
+        mode = Math.min(Math.max(mode, min), max);
+        
+        // the terms only decrease away from the mode, so an underflow ends a walk
+        double observed = 0;
+        double total = 1;
+        double q = 1;
+        for (int x = mode; x < max; ++x) {
+            q *= (double) (ab - x) * (ac - x) / ((double) (x + 1) * (cd - ac + x + 1));
+            total += q;
+            if (x + 1 == a) {
+                observed = q;
+            }
+            if (q == 0) {
+                break;
+            }
+        }
+        q = 1;
+        for (int x = mode; x > min; --x) {
+            q *= (double) x * (cd - ac + x) / ((double) (ab - x + 1) * (ac - x + 1));
+            total += q;
+            if (x - 1 == a) {
+                observed = q;
+            }
+            if (q == 0) {
+                break;
+            }
+        }
+        if (a == mode) {
+            observed = 1;
+        }
+        
+        // twoSidedBySum scales the log probability of the observed table by 1 - 1e-8; 
+        // taken in log space since total / observed overflows for subnormal tails
+        double limit = observed;
+        if (observed > 0) {
+            limit = Math.exp(Math.log(observed) + 1e-8 * (Math.log(total) - Math.log(observed)));
+        }
+        
+        double p = 0;
+        q = 1;
+        if (q <= limit) {
+            p += q;
+        }
+        for (int x = mode; x < max; ++x) {
+            q *= (double) (ab - x) * (ac - x) / ((double) (x + 1) * (cd - ac + x + 1));
+            if (q == 0) {
+                break;
+            }
+            if (q <= limit) {
+                p += q;
+            }
+        }
+        q = 1;
+        for (int x = mode; x > min; --x) {
+            q *= (double) x * (cd - ac + x) / ((double) (ab - x + 1) * (ac - x + 1));
+            if (q == 0) {
+                break;
+            }
+            if (q <= limit) {
+                p += q;
+            }
+        }
+        return p / total;
+    }
+    
+    // allocated on the first test rather than when the settings are validated
+    private static class Cache {
+        
+        private static final int maxCachedTotal;
+        private static final AtomicLongArray slots;
+        
+        static {
+            // validate() rejects values out of range before any test runs
+            maxCachedTotal = Math.min(Math.max(-1, getMaxCachedTotal()), MAX_CACHED_TOTAL);
+            slots = new AtomicLongArray((int) getIndex(maxCachedTotal + 1, 0, 0, 0));
+            for (int i = 0; i < slots.length(); ++i) {
+                slots.lazySet(i, EMPTY);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,241 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.math;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * log10(1 / Beta(j + 1, i + 2 - j)) for 0 <= j <= i + 1, i.e. the weights the 
+ * mosaic model puts on the number of major allele reads. Tables are shared by 
+ * (max depth, alpha, beta) and are safe to use from several threads. Rows are 
+ * built on first use from the log10 binomial coefficients, which are carried 
+ * from one row of Pascal's triangle to the next. With a cache directory, the 
+ * whole table is written once and later runs map the file instead.
+ */
+public class LogBetaTable {
+
+    public static final long MAGIC = 0x4d48425441303031L; // MHBTA001
+    public static final int HEADER_SIZE = 32;
+    
+    private static final Map<String, LogBetaTable> tables = new HashMap<String, LogBetaTable>();
+    
+    private final int maxDepth;
+    private final int alphaParam;
+    private final int betaParam;
+    private final int rowCount;
+    
+    // either rows built on the heap or the mapped cache file
+    private final double[][] rows;
+    private final DoubleBuffer mappedRows;
+    private volatile int builtRows = 0;
+    
+    // the last row of Pascal's triangle in log10, guarded by this
+    private double[] logBinomial = new double[] {0};
+    private int logBinomialRow = 0;
+    
+    private LogBetaTable(int maxDepth, int alphaParam, int betaParam, DoubleBuffer mappedRows) {
+        this.maxDepth = maxDepth;
+        this.alphaParam = alphaParam;
+        this.betaParam = betaParam;
+        this.rowCount = getRowCount(maxDepth, alphaParam, betaParam);
+        this.mappedRows = mappedRows;
+        this.rows = mappedRows == null ? new double[rowCount][] : null;
+    }
+    
+    public static LogBetaTable getInstance(int maxDepth, int alphaParam, int betaParam) {
+        try {
+            return getInstance(maxDepth, alphaParam, betaParam, null);
+        } catch (IOException e) {
+            // not reachable without a cache directory
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public static synchronized LogBetaTable getInstance(
+            int maxDepth, int alphaParam, int betaParam, File cacheDir) throws IOException {
+        String key = maxDepth + "_" + alphaParam + "_" + betaParam;
+        LogBetaTable table = tables.get(key);
+        if (table == null) {
+            if (cacheDir == null) {
+                table = new LogBetaTable(maxDepth, alphaParam, betaParam, null);
+            } else {
+                File file = new File(cacheDir, "log_beta_" + key + ".bin");
+                table = read(file, maxDepth, alphaParam, betaParam);
+                if (table == null) {
+                    cacheDir.mkdirs();
+                    table = new LogBetaTable(maxDepth, alphaParam, betaParam, null);
+                    table.write(file);
+                }
+            }
+            tables.put(key, table);
+        }
+        return table;
+    }
+    
+    public static int getRowCount(int maxDepth, int alphaParam, int betaParam) {
+        if (alphaParam > 0 && betaParam > 0) {
+            return maxDepth + alphaParam + betaParam + 1;
+        }
+        return maxDepth + 1;
+    }
+    
+    public int getRowCount() {
+        return rowCount;
+    }
+    
+    public double get(int i, int j) {
+        if (mappedRows != null) {
+            if (i < 0 || i >= rowCount || j < 0 || j > i + 1) {
+                throw new ArrayIndexOutOfBoundsException(i + "," + j);
+            }
+            return mappedRows.get(getRowOffset(i) + j);
+        }
+        if (i >= builtRows) {
+            buildRows(i);
+        }
+        return rows[i][j];
+    }
+    
+    private synchronized void buildRows(int row) {
+        int end = Math.min(row + 1, rowCount);
+        for (int i = builtRows; i < end; ++i) {
+            // Beta(P,Q) = (P+Q)/(P*Q*C(P+Q,P)) = 1/(Q*C(P+Q-1,P-1))
+            while (logBinomialRow < i + 2) {
+                nextLogBinomialRow();
+            }
+            double[] r = new double[i + 2];
+            for (int j = 0; j <= i + 1; ++j) {
+                int p = j + 1;
+                int q = i + 3 - p;
+                r[j] = -Math.log10(q) - logBinomial[p - 1];
+            }
+            rows[i] = r;
+        }
+        if (end > builtRows) {
+            builtRows = end;
+        }
+    }
+    
+    private void nextLogBinomialRow() {
+        int n = logBinomialRow + 1;
+        double[] c = new double[n + 1];
+        for (int j = 1; j <= n / 2; ++j) {
+            c[j] = expAdd(logBinomial[j - 1], logBinomial[j]);
+            c[n - j] = c[j];
+        }
+        logBinomial = c;
+        logBinomialRow = n;
+    }
+    
+    private static double expAdd(double exp1, double exp2) {
+        double diff = exp1 - exp2;
+        if (diff < -12) {
+            return exp2;
+        } else if (diff > 12) {
+            return exp1;
+        } else {
+            return exp2 + Math.log10(1.0 + Math.pow(10.0, diff));
+        }
+    }
+    
+    // row i holds i + 2 values
+    private static int getRowOffset(int i) {
+        return i * (i + 3) / 2;
+    }
+    
+    private void write(File file) throws IOException {
+        buildRows(rowCount - 1);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20));
+        try {
+            out.writeLong(MAGIC);
+            out.writeInt(maxDepth);
+            out.writeInt(alphaParam);
+            out.writeInt(betaParam);
+            out.writeInt(rowCount);
+            out.writeLong(0);
+            for (int i = 0; i < rowCount; ++i) {
+                for (double v : rows[i]) {
+                    out.writeLong(Long.reverseBytes(Double.doubleToRawLongBits(v)));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            file.delete();
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                throw new IOException("cannot rename " + tmpFile + " to " + file);
+            }
+        }
+    }
+    
+    // returns null if the file is missing or was written for other parameters
+    private static LogBetaTable read(File file, int maxDepth, int alphaParam, int betaParam) 
+            throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        int rowCount = getRowCount(maxDepth, alphaParam, betaParam);
+        long size = HEADER_SIZE + getRowOffset(rowCount) * 8L;
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (file.length() != size ||
+                in.readLong() != MAGIC ||
+                in.readInt() != maxDepth ||
+                in.readInt() != alphaParam ||
+                in.readInt() != betaParam ||
+                in.readInt() != rowCount) {
+                return null;
+            }
+        } finally {
+            in.close();
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            DoubleBuffer mappedRows = raf.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size - HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            return new LogBetaTable(maxDepth, alphaParam, betaParam, mappedRows);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package cn.edu.pku.cbi.mosaichunter.output;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPOutputStream;
+
+import cn.edu.pku.cbi.mosaichunter.StatsManager;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Writer of one output file. Text is encoded into byte blocks by the caller, full
+ * blocks are handed to the writer thread of {@link OutputManager}, or written by 
+ * the caller when the queue size is 0.
+ * flush() returns when everything written so far is in the file, with a 
+ * compressed file ending at a complete gzip member or BGZF block, so that the 
+ * file can be truncated to its length and appended later.
+ */
+public class AsyncFileWriter extends Writer {
+
+    private static final int DATA = 0;
+    private static final int FLUSH = 1;
+    private static final int CLOSE = 2;
+    
+    private final File file;
+    private final String compression;
+    private final int blockSize;
+    private final int queueSize;
+    private final boolean grow;
+    
+    private byte[] block;
+    private int blockLength = 0;
+    private boolean closed = false;
+    private final Object queueLock = new Object();
+    private int pending = 0;
+    private final ConcurrentLinkedQueue<byte[]> freeBlocks = new ConcurrentLinkedQueue<byte[]>();
+    private volatile IOException error = null;
+    
+    // used by the writer thread only
+    private final BufferedOutputStream fileOut;
+    private final SinkStream sink = new SinkStream();
+    private OutputStream compressedOut = null;
+    private boolean compressed = false;
+    
+    AsyncFileWriter(File file, boolean append, String compression, 
+            int blockSize, int queueSize, boolean grow) throws IOException {
+        this.file = file;
+        this.compression = compression;
+        this.blockSize = blockSize;
+        this.queueSize = queueSize;
+        this.grow = grow;
+        block = new byte[blockSize];
+        if (!append) {
+            new FileOutputStream(file).close();
+        }
+        // appending, as chunk outputs may be merged into the file while it is open
+        fileOut = new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16);
+    }
+    
+    public File getFile() {
+        return file;
+    }
+    
+    public void write(byte[] b, int off, int len) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            while (len > 0) {
+                int n = Math.min(len, blockSize - blockLength);
+                System.arraycopy(b, off, block, blockLength, n);
+                blockLength += n;
+                off += n;
+                len -= n;
+                if (blockLength == blockSize) {
+                    submitBlock();
+                }
+            }
+        }
+    }
+    
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            for (int i = off; i < off + len; ++i) {
+                if (cbuf[i] >= 0x80) {
+                    byte[] b = new String(cbuf, off, len).getBytes();
+                    write(b, 0, b.length);
+                    return;
+                }
+            }
+            while (len > 0) {
+                int n = Math.min(len, blockSize - blockLength);
+                for (int i = 0; i < n; ++i) {
+                    block[blockLength + i] = (byte) cbuf[off + i];
+                }
+                blockLength += n;
+                off += n;
+                len -= n;
+                if (blockLength == blockSize) {
+                    submitBlock();
+                }
+            }
+        }
+    }
+    
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            for (int i = off; i < off + len; ++i) {
+                if (str.charAt(i) >= 0x80) {
+                    byte[] b = str.substring(off, off + len).getBytes();
+                    write(b, 0, b.length);
+                    return;
+                }
+            }
+            while (len > 0) {
+                int n = Math.min(len, blockSize - blockLength);
+                for (int i = 0; i < n; ++i) {
+                    block[blockLength + i] = (byte) str.charAt(off + i);
+                }
+                blockLength += n;
+                off += n;
+                len -= n;
+                if (blockLength == blockSize) {
+                    submitBlock();
+                }
+            }
+        }
+    }
+    
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            submitBlock();
+            submitAndWait(FLUSH);
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                submitBlock();
+                submitAndWait(CLOSE);
+            } finally {
+                OutputManager.closed(this);
+            }
+        }
+    }
+    
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("writer is closed: " + file);
+        }
+        checkError();
+    }
+    
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+    
+    private void submitBlock() throws IOException {
+        if (blockLength == 0) {
+            return;
+        }
+        Task task = new Task(DATA, block, blockLength);
+        byte[] next = freeBlocks.poll();
+        block = next == null ? new byte[blockSize] : next;
+        blockLength = 0;
+        if (queueSize == 0) {
+            task.run();
+            checkError();
+            return;
+        }
+        synchronized (queueLock) {
+            if (!grow && pending >= queueSize) {
+                StatsManager.count("output_manager.blocked");
+                while (pending >= queueSize) {
+                    try {
+                        queueLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted while writing " + file);
+                    }
+                }
+            }
+            pending++;
+        }
+        OutputManager.submit(task);
+    }
+    
+    private void submitAndWait(int type) throws IOException {
+        Task task = new Task(type, null, 0);
+        if (queueSize == 0) {
+            task.run();
+        } else {
+            OutputManager.submit(task);
+            try {
+                task.done.await();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted while writing " + file);
+            }
+        }
+        checkError();
+    }
+    
+    class Task implements Runnable {
+        
+        private final int type;
+        private final byte[] data;
+        private final int length;
+        private final CountDownLatch done;
+        
+        private Task(int type, byte[] data, int length) {
+            this.type = type;
+            this.data = data;
+            this.length = length;
+            this.done = type == DATA ? null : new CountDownLatch(1);
+        }
+        
+        public void run() {
+            try {
+                if (error == null) {
+                    if (type == DATA) {
+                        sink.write(data, 0, length);
+                    } else if (type == FLUSH) {
+                        sink.flush();
+                    } else {
+                        sink.close();
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                if (type == DATA) {
+                    freeBlocks.add(data);
+                    if (queueSize > 0) {
+                        synchronized (queueLock) {
+                            pending--;
+                            queueLock.notifyAll();
+                        }
+                    }
+                } else {
+                    if (type == CLOSE && error != null) {
+                        try {
+                            fileOut.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                    done.countDown();
+                }
+            }
+        }
+    }
+    
+    // the compressed stream is created with the first data, flush() may end it
+    private class SinkStream extends OutputStream {
+        
+        @Override
+        public void write(int b) throws IOException {
+            getOut().write(b);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                getOut().write(b, off, len);
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            finishOut(false);
+            fileOut.flush();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (!compressed) {
+                // an empty but valid compressed file
+                getOut();
+            }
+            finishOut(true);
+            fileOut.close();
+        }
+        
+        private OutputStream getOut() throws IOException {
+            if (compressedOut == null) {
+                if (compression.equals(OutputManager.COMPRESSION_GZIP)) {
+                    compressedOut = new GZIPOutputStream(fileOut, 1 << 16);
+                } else if (compression.equals(OutputManager.COMPRESSION_BGZF)) {
+                    compressedOut = new BlockCompressedOutputStream(new UnclosedStream(), file);
+                } else {
+                    return fileOut;
+                }
+                compressed = true;
+            }
+            return compressedOut;
+        }
+        
+        // ends the gzip member or the BGZF block, the BGZF end marker is written on close
+        private void finishOut(boolean close) throws IOException {
+            if (compressedOut == null) {
+                return;
+            }
+            if (compressedOut instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) compressedOut).finish();
+                compressedOut = null;
+            } else if (close) {
+                compressedOut.close();
+                compressedOut = null;
+            } else {
+                compressedOut.flush();
+            }
+        }
+    }
+    
+    // keeps the file open when a BGZF stream is closed
+    private class UnclosedStream extends OutputStream {
+        
+        @Override
+        public void write(int b) throws IOException {
+            fileOut.write(b);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            fileOut.write(b, off, len);
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            fileOut.flush();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            fileOut.flush();
+        }
+    }
+}
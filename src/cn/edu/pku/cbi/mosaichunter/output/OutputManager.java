@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package cn.edu.pku.cbi.mosaichunter.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+import cn.edu.pku.cbi.mosaichunter.config.ConfigManager;
+
+/**
+ * Output files of the filters. The text is collected in blocks which a single
+ * writer thread encodes, compresses and writes, so that the filters do not wait 
+ * for the disk unless a file falls queue_size blocks behind.
+ */
+public class OutputManager {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+    
+    public static final String COMPRESSION_NONE = "none";
+    public static final String COMPRESSION_GZIP = "gzip";
+    public static final String COMPRESSION_BGZF = "bgzf";
+    
+    // a file that is queue_size blocks behind blocks its filter until the writer catches up
+    public static final String POLICY_BLOCK = "block";
+    // or the queue keeps growing
+    public static final String POLICY_GROW = "grow";
+    
+    private static final boolean async;
+    private static final String compression;
+    private static final int blockSize;
+    private static final int queueSize;
+    private static final boolean grow;
+    
+    private static final BlockingQueue<AsyncFileWriter.Task> tasks = 
+            new LinkedBlockingQueue<AsyncFileWriter.Task>();
+    private static final Set<AsyncFileWriter> openWriters = new LinkedHashSet<AsyncFileWriter>();
+    private static Thread writerThread = null;
+    
+    static {
+        ConfigManager config = ConfigManager.getInstance();
+        async = config.getBoolean("output_manager", "async", true);
+        compression = config.get("output_manager", "compression", COMPRESSION_NONE).trim().toLowerCase();
+        blockSize = Math.max(1, config.getInt("output_manager", "block_size", DEFAULT_BLOCK_SIZE));
+        queueSize = Math.max(1, config.getInt("output_manager", "queue_size", DEFAULT_QUEUE_SIZE));
+        grow = POLICY_GROW.equalsIgnoreCase(
+                config.get("output_manager", "queue_policy", POLICY_BLOCK).trim());
+    }
+    
+    private OutputManager() {
+    }
+    
+    public static boolean validate() {
+        if (!compression.equals(COMPRESSION_NONE) && 
+            !compression.equals(COMPRESSION_GZIP) &&
+            !compression.equals(COMPRESSION_BGZF)) {
+            System.out.println("invalid output_manager.compression: " + compression);
+            return false;
+        }
+        return true;
+    }
+    
+    public static String getFileSuffix() {
+        return compression.equals(COMPRESSION_NONE) ? "" : ".gz";
+    }
+    
+    /**
+     * The length of a file without its BGZF end marker, which must be dropped 
+     * when the file is appended to another one. A file whose writer did not 
+     * close, like the output of a chunk saved in a checkpoint, has no marker.
+     */
+    public static long getAppendLength(File file) throws IOException {
+        long length = file.length();
+        byte[] marker = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+        if (!compression.equals(COMPRESSION_BGZF) || length < marker.length) {
+            return length;
+        }
+        byte[] tail = new byte[marker.length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(length - marker.length);
+            raf.readFully(tail);
+        } finally {
+            raf.close();
+        }
+        return Arrays.equals(tail, marker) ? length - marker.length : length;
+    }
+    
+    public static AsyncFileWriter open(File file, boolean append) throws IOException {
+        AsyncFileWriter writer = new AsyncFileWriter(
+                file, append, compression, blockSize, async ? queueSize : 0, grow);
+        synchronized (openWriters) {
+            openWriters.add(writer);
+        }
+        if (async) {
+            startWriterThread();
+        }
+        return writer;
+    }
+    
+    static void closed(AsyncFileWriter writer) {
+        synchronized (openWriters) {
+            openWriters.remove(writer);
+        }
+    }
+    
+    static void submit(AsyncFileWriter.Task task) {
+        tasks.add(task);
+    }
+    
+    private static synchronized void startWriterThread() {
+        if (writerThread != null) {
+            return;
+        }
+        writerThread = new Thread("output_manager") {
+            @Override
+            public void run() {
+                for (;;) {
+                    AsyncFileWriter.Task task;
+                    try {
+                        task = tasks.take();
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                    task.run();
+                }
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+        
+        // filters which are not closed because of an error still get their output
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                flushAll();
+            }
+        });
+    }
+    
+    public static void flushAll() {
+        List<AsyncFileWriter> writers;
+        synchronized (openWriters) {
+            writers = new ArrayList<AsyncFileWriter>(openWriters);
+        }
+        for (AsyncFileWriter writer : writers) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
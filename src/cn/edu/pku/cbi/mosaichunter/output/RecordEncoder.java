@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package cn.edu.pku.cbi.mosaichunter.output;
+
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Reusable byte buffer for one output line. Decimals are written with the 
+ * fraction digits of the given "0.00..." format and give the same text as it, 
+ * without going through the format for ordinary values.
+ */
+public class RecordEncoder {
+
+    // larger values keep enough precision only with the slow path
+    private static final double MAX_FAST_VALUE = 1e7;
+    
+    private static final long[] POW10 = new long[] {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+    
+    private final DecimalFormat format;
+    private final int fractionDigits;
+    private final double scale;
+    private final byte decimalSeparator;
+    private final byte minusSign;
+    private final boolean fast;
+    
+    private byte[] buffer = new byte[1 << 10];
+    private int length = 0;
+    private final byte[] digits = new byte[20];
+    
+    public RecordEncoder(DecimalFormat format) {
+        this.format = format;
+        this.fractionDigits = format.getMaximumFractionDigits();
+        DecimalFormatSymbols symbols = format.getDecimalFormatSymbols();
+        this.decimalSeparator = (byte) symbols.getDecimalSeparator();
+        this.minusSign = (byte) symbols.getMinusSign();
+        this.fast = fractionDigits == format.getMinimumFractionDigits() &&
+                    fractionDigits < POW10.length &&
+                    format.getMinimumIntegerDigits() == 1 &&
+                    !format.isGroupingUsed() &&
+                    format.getRoundingMode() == RoundingMode.HALF_EVEN &&
+                    symbols.getZeroDigit() == '0' &&
+                    symbols.getDecimalSeparator() < 0x80 &&
+                    symbols.getMinusSign() < 0x80 &&
+                    format.getPositivePrefix().isEmpty() && 
+                    format.getPositiveSuffix().isEmpty() &&
+                    format.getNegativePrefix().equals(String.valueOf(symbols.getMinusSign())) && 
+                    format.getNegativeSuffix().isEmpty();
+        this.scale = POW10[Math.min(fractionDigits, POW10.length - 1)];
+    }
+    
+    public void reset() {
+        length = 0;
+    }
+    
+    public int length() {
+        return length;
+    }
+    
+    public void writeTo(AsyncFileWriter writer) throws IOException {
+        writer.write(buffer, 0, length);
+    }
+    
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+    
+    private void ensureCapacity(int n) {
+        if (length + n > buffer.length) {
+            byte[] newBuffer = new byte[Math.max(buffer.length * 2, length + n)];
+            System.arraycopy(buffer, 0, newBuffer, 0, length);
+            buffer = newBuffer;
+        }
+    }
+    
+    public RecordEncoder appendByte(int b) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) b;
+        return this;
+    }
+    
+    public RecordEncoder append(char c) {
+        if (c >= 0x80) {
+            return appendBytes(String.valueOf(c).getBytes());
+        }
+        return appendByte(c);
+    }
+    
+    public RecordEncoder append(String s) {
+        int n = s.length();
+        ensureCapacity(n);
+        for (int i = 0; i < n; ++i) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                return appendBytes(s.substring(i).getBytes());
+            }
+            buffer[length++] = (byte) c;
+        }
+        return this;
+    }
+    
+    public RecordEncoder appendBytes(byte[] b) {
+        ensureCapacity(b.length);
+        System.arraycopy(b, 0, buffer, length, b.length);
+        length += b.length;
+        return this;
+    }
+    
+    public RecordEncoder append(long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                return append(String.valueOf(value));
+            }
+            appendByte('-');
+            value = -value;
+        }
+        return appendDigits(value, 1);
+    }
+    
+    // at least minDigits digits, padded with zeros
+    private RecordEncoder appendDigits(long value, int minDigits) {
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (n < minDigits) {
+            digits[n++] = '0';
+        }
+        ensureCapacity(n);
+        while (n > 0) {
+            buffer[length++] = digits[--n];
+        }
+        return this;
+    }
+    
+    public RecordEncoder append(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return append(String.valueOf(value));
+        }
+        double abs = Math.abs(value);
+        if (!fast || abs >= MAX_FAST_VALUE) {
+            return append(format.format(value));
+        }
+        
+        double scaled = abs * scale;
+        double floor = Math.floor(scaled);
+        double fraction = scaled - floor;
+        if (Math.abs(fraction - 0.5) <= 4 * Math.ulp(scaled)) {
+            // too close to a tie to tell which way the format rounds it
+            return append(format.format(value));
+        }
+        long units = (long) floor + (fraction > 0.5 ? 1 : 0);
+        
+        // the format keeps the sign of negative values rounded to zero
+        if (value < 0 || (value == 0 && 1 / value < 0)) {
+            appendByte(minusSign);
+        }
+        long p = POW10[fractionDigits];
+        appendDigits(units / p, 1);
+        if (fractionDigits > 0) {
+            appendByte(decimalSeparator);
+            appendDigits(units % p, fractionDigits);
+        }
+        return this;
+    }
+    
+    // as String.valueOf(value) for the usual metadata types
+    public RecordEncoder append(Object value) {
+        if (value instanceof Double) {
+            return append(((Double) value).doubleValue());
+        } else if (value instanceof Long || value instanceof Integer || 
+                   value instanceof Short || value instanceof Byte) {
+            return append(((Number) value).longValue());
+        } else if (value instanceof Character) {
+            return append(((Character) value).charValue());
+        } else if (value instanceof String) {
+            return append((String) value);
+        }
+        return append(String.valueOf(value));
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.reference;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cn.edu.pku.cbi.mosaichunter.MosaicHunterHelper;
+
+/**
+ * Reads a FASTA file into 2-bit packed ACGT runs. With a .fai index next to the
+ * FASTA file the contigs are decoded in parallel straight from their byte ranges,
+ * otherwise the file is read once sequentially. Contigs not in the valid reference
+ * list are skipped.
+ */
+public class FastaReader {
+
+    public static final int BLOCK_SIZE = 4 * 1024 * 1024;
+    
+    private final File fastaFile;
+    private final Set<String> validReferences;
+    private final int threads;
+    
+    public FastaReader(File fastaFile, Set<String> validReferences, int threads) {
+        this.fastaFile = fastaFile;
+        this.validReferences = validReferences;
+        this.threads = Math.max(threads, 1);
+    }
+    
+    public List<Reference> read() throws IOException {
+        File faiFile = new File(fastaFile.getPath() + ".fai");
+        if (faiFile.isFile()) {
+            return readIndexed(faiFile);
+        }
+        return readSequential();
+    }
+    
+    private boolean isValid(String name) {
+        return validReferences.isEmpty() || validReferences.contains(name);
+    }
+    
+    private List<Reference> readSequential() throws IOException {
+        List<Reference> references = new ArrayList<Reference>();
+        InputStream in = new FileInputStream(fastaFile);
+        try {
+            byte[] buffer = new byte[BLOCK_SIZE];
+            StringBuilder header = null;
+            boolean lineStart = true;
+            ContigBuilder contig = null;
+            String name = null;
+            String metadata = null;
+            for (;;) {
+                int n = in.read(buffer);
+                if (n < 0) {
+                    break;
+                }
+                int from = 0;
+                for (int i = 0; i < n; ++i) {
+                    byte c = buffer[i];
+                    if (header != null) {
+                        if (c == '\n' || c == '\r') {
+                            metadata = getMetadata(header);
+                            name = getName(metadata);
+                            contig = isValid(name) ? new ContigBuilder() : null;
+                            header = null;
+                            from = i + 1;
+                            lineStart = true;
+                        } else {
+                            header.append((char) (c & 0xFF));
+                        }
+                        continue;
+                    }
+                    if (lineStart && c == '>') {
+                        if (contig != null) {
+                            contig.add(buffer, from, i);
+                            references.add(contig.build(name, metadata));
+                        }
+                        contig = null;
+                        name = null;
+                        header = new StringBuilder();
+                        continue;
+                    }
+                    lineStart = c == '\n' || c == '\r';
+                }
+                if (contig != null && header == null) {
+                    contig.add(buffer, from, n);
+                }
+            }
+            if (header != null) {
+                metadata = getMetadata(header);
+                name = getName(metadata);
+                contig = isValid(name) ? new ContigBuilder() : null;
+            }
+            if (contig != null) {
+                references.add(contig.build(name, metadata));
+            }
+        } finally {
+            in.close();
+        }
+        return references;
+    }
+    
+    private List<Reference> readIndexed(File faiFile) throws IOException {
+        final List<String[]> entries = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(faiFile));
+        try {
+            for (;;) {
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                String[] tokens = line.split("\\t");
+                if (tokens.length >= 5 && isValid(tokens[0])) {
+                    entries.add(tokens);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        
+        List<Reference> references = new ArrayList<Reference>();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(threads, entries.size())));
+        try {
+            List<Future<Reference>> futures = new ArrayList<Future<Reference>>();
+            for (final String[] entry : entries) {
+                futures.add(executor.submit(new Callable<Reference>() {
+                    public Reference call() throws Exception {
+                        return readContig(
+                                entry[0],
+                                Long.parseLong(entry[1]),
+                                Long.parseLong(entry[2]),
+                                Integer.parseInt(entry[3]),
+                                Integer.parseInt(entry[4]));
+                    }
+                }));
+            }
+            for (Future<Reference> future : futures) {
+                references.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while reading " + fastaFile, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("failed to read " + fastaFile, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return references;
+    }
+    
+    private Reference readContig(
+            String name, long length, long offset, int lineBases, int lineWidth) 
+                    throws IOException {
+        long end = offset + length / lineBases * lineWidth + length % lineBases;
+        RandomAccessFile raf = new RandomAccessFile(fastaFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            String metadata = readHeader(channel, offset, name);
+            ContigBuilder contig = new ContigBuilder();
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            long position = offset;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(BLOCK_SIZE, end - position));
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    break;
+                }
+                contig.add(buffer.array(), 0, n);
+                position += n;
+            }
+            return contig.build(name, metadata);
+        } finally {
+            raf.close();
+        }
+    }
+    
+    // the .fai index has no description, so take it from the header line right 
+    // before the sequence
+    private static String readHeader(FileChannel channel, long offset, String name) 
+            throws IOException {
+        int n = (int) Math.min(offset, 64 * 1024);
+        ByteBuffer buffer = ByteBuffer.allocate(n);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset - n + buffer.position()) < 0) {
+                break;
+            }
+        }
+        byte[] bytes = buffer.array();
+        int end = buffer.position();
+        while (end > 0 && (bytes[end - 1] == '\n' || bytes[end - 1] == '\r')) {
+            end--;
+        }
+        int start = end;
+        while (start > 0 && bytes[start - 1] != '\n' && bytes[start - 1] != '\r') {
+            start--;
+        }
+        if (start == end || bytes[start] != '>') {
+            return name;
+        }
+        StringBuilder header = new StringBuilder();
+        for (int i = start + 1; i < end; ++i) {
+            header.append((char) (bytes[i] & 0xFF));
+        }
+        return getMetadata(header);
+    }
+    
+    private static String getMetadata(StringBuilder header) {
+        int p = 0;
+        while (p < header.length() && header.charAt(p) == '>') {
+            p++;
+        }
+        return header.substring(p);
+    }
+    
+    private static String getName(String metadata) {
+        int p = metadata.indexOf(' ');
+        return p < 0 ? metadata : metadata.substring(0, p);
+    }
+    
+    private static class ContigBuilder {
+        
+        private final List<Sequence> sequences = new ArrayList<Sequence>();
+        private long[] buffer = new long[1024];
+        private long length = 0;
+        
+        // 0 while not in an ACGT run. A run can never start at offset 0, so the 
+        // first base of a contig is read as N, the same as earlier releases did.
+        private long sequenceStart = 0;
+        
+        public void add(byte[] data, int from, int to) {
+            for (int i = from; i < to; ++i) {
+                byte c = data[i];
+                if (c == '\n' || c == '\r') {
+                    continue;
+                }
+                long id = MosaicHunterHelper.BASE_TO_ID[c & 0xFF];
+                if (id < 0) {
+                    endSequence();
+                } else {
+                    if (sequenceStart == 0) {
+                        sequenceStart = length;
+                    }
+                    long offset = length - sequenceStart;
+                    int o1 = ((int) (offset & 31)) << 1;
+                    int o2 = 64 - o1 - 2;
+                    int k = (int) (offset >> 5);
+                    if (k >= buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                    buffer[k] = ((buffer[k] << o2) >>> o2) & ((1L << o1) - 1) | (id << o1);
+                }
+                length++;
+            }
+        }
+        
+        private void endSequence() {
+            if (sequenceStart > 0) {
+                long sequenceLength = length - sequenceStart;
+                long[] bases = Arrays.copyOf(buffer, (int) ((sequenceLength >> 5) + 1));
+                if ((sequenceLength & 31) == 0) {
+                    bases[bases.length - 1] = 0;
+                }
+                sequences.add(new Sequence(sequenceStart, sequenceLength, bases));
+                sequenceStart = 0;
+            }
+        }
+        
+        public Reference build(String name, String metadata) {
+            endSequence();
+            buffer = null;
+            return new Reference(name, metadata, length, sequences);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package cn.edu.pku.cbi.mosaichunter.reference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Positions near homopolymers, one bit per reference position. A position is 
+ * set if it is within longExpansion of a run of at least longLength identical 
+ * bases, or within shortExpansion of a run of at least shortLength.
+ * The bits can be kept in a cache file next to the reference cache: a header 
+ * with the parameters and the references, then the bits of every reference as
+ * little-endian longs, which are memory-mapped when the file is read. Without
+ * a cache file, the bits of a reference are built on its first lookup.
+ */
+public class HomopolymerMask {
+
+    public static final long MAGIC = 0x4d48484d50303031L; // MHHMP001
+    
+    private static HomopolymerMask instance = null;
+    
+    private final ReferenceManager referenceManager;
+    private final int shortLength;
+    private final int longLength;
+    private final int shortExpansion;
+    private final int longExpansion;
+    private final AtomicReferenceArray<LongBuffer> bits;
+    
+    private HomopolymerMask(ReferenceManager referenceManager, 
+            int shortLength, int longLength, int shortExpansion, int longExpansion) {
+        this.referenceManager = referenceManager;
+        this.shortLength = shortLength;
+        this.longLength = longLength;
+        this.shortExpansion = shortExpansion;
+        this.longExpansion = longExpansion;
+        this.bits = new AtomicReferenceArray<LongBuffer>(referenceManager.getReferenceNumber());
+    }
+    
+    /**
+     * The mask of the last parameters is kept, so all the threads share it. 
+     * With a cache file, the mask is read from it, or built and written to it if
+     * it is missing or was built for another reference or other parameters.
+     */
+    public static synchronized HomopolymerMask getInstance(ReferenceManager referenceManager, 
+            int shortLength, int longLength, int shortExpansion, int longExpansion,
+            File cacheFile, File fastaFile) throws IOException {
+        if (instance != null && 
+            instance.referenceManager == referenceManager &&
+            instance.shortLength == shortLength &&
+            instance.longLength == longLength &&
+            instance.shortExpansion == shortExpansion &&
+            instance.longExpansion == longExpansion) {
+            return instance;
+        }
+        HomopolymerMask mask = new HomopolymerMask(
+                referenceManager, shortLength, longLength, shortExpansion, longExpansion);
+        if (cacheFile != null && !mask.read(cacheFile, fastaFile)) {
+            mask.write(cacheFile, fastaFile);
+        }
+        instance = mask;
+        return instance;
+    }
+    
+    public boolean isMasked(int refId, long pos) {
+        LongBuffer b = bits.get(refId);
+        if (b == null) {
+            b = build(refId);
+        }
+        int i = (int) (pos >>> 6);
+        return pos >= 0 && i < b.limit() && (b.get(i) & (1L << pos)) != 0;
+    }
+    
+    private synchronized LongBuffer build(int refId) {
+        LongBuffer b = bits.get(refId);
+        if (b == null) {
+            b = LongBuffer.wrap(build(referenceManager.getReference(refId)));
+            bits.set(refId, b);
+        }
+        return b;
+    }
+    
+    private long[] build(Reference reference) {
+        long length = reference.getLength();
+        long[] b = new long[getWordCount(length)];
+        int runBase = -1;
+        long runStart = 0;
+        long runEnd = -1;
+        List<Sequence> sequences = reference.getSequences();
+        for (Sequence s : sequences) {
+            for (long offset = 0; offset < s.getLength(); ++offset) {
+                long pos = s.getStart() + 1 + offset;
+                int base = s.getBaseId(offset);
+                if (base == runBase && pos == runEnd + 1) {
+                    runEnd = pos;
+                } else {
+                    markRun(b, length, runStart, runEnd);
+                    runBase = base;
+                    runStart = pos;
+                    runEnd = pos;
+                }
+            }
+        }
+        markRun(b, length, runStart, runEnd);
+        return b;
+    }
+    
+    private void markRun(long[] b, long length, long start, long end) {
+        if (end < start) {
+            return;
+        }
+        long n = end - start + 1;
+        if (n >= longLength) {
+            mark(b, length, start - longExpansion, end + longExpansion);
+        }
+        if (n >= shortLength) {
+            mark(b, length, start - shortExpansion, end + shortExpansion);
+        }
+    }
+    
+    private static void mark(long[] b, long length, long from, long to) {
+        from = Math.max(from, 1);
+        to = Math.min(to, length);
+        for (long pos = from; pos <= to; ++pos) {
+            b[(int) (pos >>> 6)] |= 1L << pos;
+        }
+    }
+    
+    private static int getWordCount(long length) {
+        return (int) (length >>> 6) + 1;
+    }
+    
+    private int getHeaderSize(File fastaFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new ByteArrayOutputStream());
+        writeHeader(out, fastaFile);
+        return out.size();
+    }
+    
+    private void writeHeader(DataOutputStream out, File fastaFile) throws IOException {
+        out.writeLong(MAGIC);
+        out.writeLong(fastaFile.length());
+        out.writeLong(fastaFile.lastModified());
+        out.writeInt(shortLength);
+        out.writeInt(longLength);
+        out.writeInt(shortExpansion);
+        out.writeInt(longExpansion);
+        out.writeInt(bits.length());
+        for (int i = 0; i < bits.length(); ++i) {
+            Reference reference = referenceManager.getReference(i);
+            out.writeUTF(reference.getName());
+            out.writeLong(reference.getLength());
+        }
+        out.flush();
+    }
+    
+    private void write(File file, File fastaFile) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory()) {
+            dir.mkdirs();
+        }
+        int headerSize = getHeaderSize(fastaFile);
+        long dataStart = (headerSize + 7) & ~7L;
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20));
+        try {
+            writeHeader(out, fastaFile);
+            for (long i = headerSize; i < dataStart; ++i) {
+                out.writeByte(0);
+            }
+            for (int refId = 0; refId < bits.length(); ++refId) {
+                LongBuffer b = build(refId);
+                for (int i = 0; i < b.limit(); ++i) {
+                    out.writeLong(Long.reverseBytes(b.get(i)));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            file.delete();
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                throw new IOException("cannot rename " + tmpFile + " to " + file);
+            }
+        }
+    }
+    
+    // returns false if the file is missing or does not match
+    private boolean read(File file, File fastaFile) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readLong() != MAGIC || 
+                in.readLong() != fastaFile.length() ||
+                in.readLong() != fastaFile.lastModified() ||
+                in.readInt() != shortLength ||
+                in.readInt() != longLength ||
+                in.readInt() != shortExpansion ||
+                in.readInt() != longExpansion ||
+                in.readInt() != bits.length()) {
+                return false;
+            }
+            for (int i = 0; i < bits.length(); ++i) {
+                Reference reference = referenceManager.getReference(i);
+                if (!in.readUTF().equals(reference.getName()) || 
+                    in.readLong() != reference.getLength()) {
+                    return false;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        
+        long offset = (getHeaderSize(fastaFile) + 7) & ~7L;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            for (int i = 0; i < bits.length(); ++i) {
+                long size = getWordCount(referenceManager.getReference(i).getLength()) * 8L;
+                if (offset + size > channel.size()) {
+                    for (int j = 0; j < i; ++j) {
+                        bits.set(j, null);
+                    }
+                    return false;
+                }
+                bits.set(i, channel.map(FileChannel.MapMode.READ_ONLY, offset, size)
+                        .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer());
+                offset += size;
+            }
+        } finally {
+            raf.close();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Center for Bioinformatics, Peking University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package cn.edu.pku.cbi.mosaichunter.reference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * On-disk copy of a ReferenceManager: a header with the references and their 
+ * ACGT runs (the gaps between runs are the N runs), followed by the 2-bit packed 
+ * bases of every run as little-endian longs. Reading maps the bases with 
+ * FileChannel.map, so nothing is copied to the heap and concurrent processes
+ * share the page cache.
+ */
+public class PackedReferenceFile {
+
+    public static final long MAGIC = 0x4d48524546303031L; // MHREF001
+    
+    private PackedReferenceFile() {
+    }
+    
+    public static void write(ReferenceManager referenceManager, File file, File fastaFile) 
+            throws IOException {
+        List<Reference> references = referenceManager.getReferences();
+        
+        // the header has a fixed size for given references, so write it once to
+        // find out where the bases start
+        int headerSize = writeHeader(
+                new DataOutputStream(new ByteArrayOutputStream()), 
+                referenceManager, fastaFile, 0);
+        long dataStart = (headerSize + 7) & ~7L;
+        
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20));
+        try {
+            writeHeader(out, referenceManager, fastaFile, dataStart);
+            for (long i = headerSize; i < dataStart; ++i) {
+                out.writeByte(0);
+            }
+            for (Reference reference : references) {
+                for (Sequence sequence : reference.getSequences()) {
+                    LongBuffer bases = sequence.getBases();
+                    int n = getWordCount(sequence);
+                    for (int i = 0; i < n; ++i) {
+                        out.writeLong(Long.reverseBytes(bases.get(i)));
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            file.delete();
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                throw new IOException("cannot rename " + tmpFile + " to " + file);
+            }
+        }
+    }
+    
+    private static int writeHeader(DataOutputStream out, ReferenceManager referenceManager, 
+            File fastaFile, long dataStart) throws IOException {
+        out.writeLong(MAGIC);
+        out.writeLong(fastaFile.length());
+        out.writeLong(fastaFile.lastModified());
+        Set<String> validReferences = new TreeSet<String>(referenceManager.getValidReferences());
+        out.writeInt(validReferences.size());
+        for (String name : validReferences) {
+            out.writeUTF(name);
+        }
+        List<Reference> references = referenceManager.getReferences();
+        out.writeInt(references.size());
+        long offset = dataStart;
+        for (Reference reference : references) {
+            out.writeUTF(reference.getName());
+            out.writeUTF(reference.getMetadata());
+            out.writeLong(reference.getLength());
+            out.writeInt(reference.getSequences().size());
+            for (Sequence sequence : reference.getSequences()) {
+                out.writeLong(sequence.getStart());
+                out.writeLong(sequence.getLength());
+                out.writeLong(offset);
+                offset += getWordCount(sequence) * 8L;
+            }
+        }
+        out.flush();
+        return out.size();
+    }
+    
+    // returns null if the file is missing or was built from a different fasta file
+    // or reference list
+    public static ReferenceManager read(File file, File fastaFile, String[] validReferences) 
+            throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        List<String[]> names = new ArrayList<String[]>();
+        List<Long> lengths = new ArrayList<Long>();
+        List<long[]> layouts = new ArrayList<long[]>();
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readLong() != MAGIC || 
+                in.readLong() != fastaFile.length() ||
+                in.readLong() != fastaFile.lastModified()) {
+                return null;
+            }
+            Set<String> cachedValidReferences = new TreeSet<String>();
+            int n = in.readInt();
+            for (int i = 0; i < n; ++i) {
+                cachedValidReferences.add(in.readUTF());
+            }
+            Set<String> expected = new TreeSet<String>();
+            if (validReferences != null) {
+                expected.addAll(Arrays.asList(validReferences));
+            }
+            if (!cachedValidReferences.equals(expected)) {
+                return null;
+            }
+            
+            int referenceNumber = in.readInt();
+            for (int i = 0; i < referenceNumber; ++i) {
+                String name = in.readUTF();
+                String metadata = in.readUTF();
+                long length = in.readLong();
+                int sequenceNumber = in.readInt();
+                long[] layout = new long[sequenceNumber * 3];
+                for (int j = 0; j < layout.length; ++j) {
+                    layout[j] = in.readLong();
+                }
+                names.add(new String[] {name, metadata});
+                lengths.add(length);
+                layouts.add(layout);
+            }
+        } finally {
+            in.close();
+        }
+        
+        List<Reference> references = new ArrayList<Reference>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            for (int i = 0; i < layouts.size(); ++i) {
+                long[] layout = layouts.get(i);
+                List<Sequence> sequences = new ArrayList<Sequence>(layout.length / 3);
+                if (layout.length > 0) {
+                    mapSequences(channel, layout, names.get(i)[0], sequences);
+                }
+                references.add(new Reference(
+                        names.get(i)[0], names.get(i)[1], lengths.get(i), sequences));
+            }
+        } finally {
+            raf.close();
+        }
+        return new ReferenceManager(references, validReferences);
+    }
+    
+    private static void mapSequences(FileChannel channel, long[] layout, String name, 
+            List<Sequence> sequences) throws IOException {
+        long start = layout[2];
+        long end = layout[layout.length - 1] + 
+                getWordCount(layout[layout.length - 2]) * 8L;
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IOException(
+                    "reference too large to map: " + name);
+        }
+        MappedByteBuffer buffer = channel.map(
+                FileChannel.MapMode.READ_ONLY, start, end - start);
+        for (int j = 0; j < layout.length; j += 3) {
+            int p = (int) (layout[j + 2] - start);
+            buffer.limit(p + getWordCount(layout[j + 1]) * 8);
+            buffer.position(p);
+            LongBuffer bases = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            sequences.add(new Sequence(layout[j], layout[j + 1], bases));
+            buffer.clear();
+        }
+    }
+    
+    private static int getWordCount(Sequence sequence) {
+        return getWordCount(sequence.getLength());
+    }
+    
+    private static int getWordCount(long length) {
+        return (int) ((length >> 5) + 1);
+    }
+}
@@ -24,22 +24,25 @@
 
 package cn.edu.pku.cbi.mosaichunter.reference;
 
-import java.io.Serializable;
 import java.util.List;
 
-public class Reference implements Serializable {
-    private static final long serialVersionUID = 1L;
+public class Reference {
     
     private final String name;
     private final String metadata;
     private final long length;
     private final List<Sequence> sequences;
+    private final long[] sequenceStarts;
     
     public Reference(String name, String metadata, long length, List<Sequence> sequences) {
         this.name = name;
         this.metadata = metadata;
         this.length = length;
         this.sequences = sequences;
+        this.sequenceStarts = new long[sequences.size()];
+        for (int i = 0; i < sequenceStarts.length; ++i) {
+            sequenceStarts[i] = sequences.get(i).getStart();
+        }
     }
 
     public String getName() {
@@ -58,4 +61,31 @@ public class Reference implements Serializable {
         return sequences;
     }
     
+    // index of the last sequence starting before the position, or -1
+    public int floorSequenceIndex(long position) {
+        int lo = 0;
+        int hi = sequenceStarts.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sequenceStarts[mid] < position) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+    
+    public Sequence findSequence(long position) {
+        int i = floorSequenceIndex(position);
+        if (i < 0) {
+            return null;
+        }
+        Sequence s = sequences.get(i);
+        if (position <= s.getStart() + s.getLength()) {
+            return s;
+        }
+        return null;
+    }
+    
 }
\ No newline at end of file
@@ -24,10 +24,8 @@
 
 package cn.edu.pku.cbi.mosaichunter.reference;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -38,133 +36,52 @@ import java.util.Set;
 
 import cn.edu.pku.cbi.mosaichunter.MosaicHunterHelper;
 
-public class ReferenceManager implements Serializable {
-    
-    private static final long serialVersionUID = 1L;
-
-    public static final int BUFFER_SIZE = 100 * 1024 * 1024;
+public class ReferenceManager {
     
     private final Map<String, Integer> referenceIds = new HashMap<String, Integer>();
     private final List<Reference> references = new ArrayList<Reference>();
     private long totalLength = 0;
     private final Set<String> validReferences = new HashSet<String>();
     
-    private int lastReferenceId;
-    private long lastPosition;
-    private Sequence lastSequence;
+    private final ThreadLocal<BaseCache> baseCache = new ThreadLocal<BaseCache>() {
+        @Override
+        protected BaseCache initialValue() {
+            return new BaseCache();
+        }
+    };
     
     public ReferenceManager(String referenceFastaFile, String[] validReferences) 
             throws IOException {
+        this(referenceFastaFile, validReferences, Runtime.getRuntime().availableProcessors());
+    }
+    
+    public ReferenceManager(String referenceFastaFile, String[] validReferences, int threads) 
+            throws IOException {
         if (validReferences != null) {
             this.validReferences.addAll(Arrays.asList(validReferences));
         }
-        
-        BufferedReader r = null;
-        try {
-            r = new BufferedReader(new FileReader(referenceFastaFile));
-            parse(r);
-        } finally {
-            if (r != null) {
-                r.close();
-            }
+        FastaReader reader = new FastaReader(
+                new File(referenceFastaFile), this.validReferences, threads);
+        for (Reference reference : reader.read()) {
+            addReference(reference);
         }
-       
     }
-
-    private void parse(BufferedReader r) throws IOException {
-        
-        long[] buffer = new long[BUFFER_SIZE];
-
-        long sequenceStart = 0;
-        String referenceName = null;
-        String referenceMetadata = null;
-        long referenceLength = 0;
-        List<Sequence> referenceSequences = null;
-                
-        for (;;) {
-            String l = r.readLine();
-            if (l == null || (!l.isEmpty() && l.charAt(0) == '>')) {
-                if (referenceName != null) {
-                    if (sequenceStart > 0) {
-                        long sequenceLength = referenceLength - sequenceStart;
-                        Sequence sequence = new Sequence(
-                                sequenceStart, 
-                                sequenceLength,
-                                new long[(int)((sequenceLength >> 5) + 1)]);
-                        System.arraycopy(
-                                buffer, 0, sequence.getBases(), 0, sequence.getBases().length);
-                        referenceSequences.add(sequence);
-                        sequenceStart = 0;
-                    }
-                    
-                    if (validReferences.isEmpty() || validReferences.contains(referenceName)) {
-                        referenceIds.put(referenceName, references.size());
-                        Reference reference = new Reference(
-                                referenceName, referenceMetadata, 
-                                referenceLength, referenceSequences);
-                        references.add(reference);
-                        totalLength += reference.getLength();
-                    }
-                }
-            }
-            if (l == null) {
-                break;
-            }
-            if (l.isEmpty()) {
-                continue;
-            }
-            
-            if (l.charAt(0) == '>') {
-                int p1 = 1;
-                while (p1 < l.length() && l.charAt(p1) == '>') {
-                    p1++;
-                }
-                int p2 = p1;
-                while (p2 < l.length() && l.charAt(p2) != ' ') {
-                    p2++;
-                }
-                referenceMetadata = l.substring(p1);
-                if (p2 == l.length()) {
-                    referenceName = referenceMetadata;
-                } else {
-                    referenceName = l.substring(p1, p2);
-                }
-                referenceLength = 0;
-                referenceSequences = new ArrayList<Sequence>();
-            } else {
-                if (referenceName != null) {
-                    for (char c : l.toCharArray()) {
-                        long id = MosaicHunterHelper.BASE_TO_ID[c];
-                        if (id < 0) {
-                            if (sequenceStart > 0) {
-                                long sequenceLength = referenceLength - sequenceStart;
-                                Sequence sequence = new Sequence(
-                                        sequenceStart, 
-                                        sequenceLength,
-                                        new long[(int)((sequenceLength >> 5) + 1)]);
-                                System.arraycopy(
-                                        buffer, 0, 
-                                        sequence.getBases(), 0, sequence.getBases().length);
-                                referenceSequences.add(sequence);
-                                sequenceStart = 0;
-                            }
-                        } else {
-                            if (sequenceStart == 0) {
-                                sequenceStart = referenceLength;
-                            }
-                            long offset = referenceLength - sequenceStart;
-                            int o1 = ((int) (offset & 31)) << 1;
-                            int o2 = 64 - o1 - 2;
-                            int k = (int) (offset >> 5);
-                            buffer[k] = ((buffer[k] << o2) >>> o2) & ((1L << o1) - 1) | (id << o1);
-                        }
-                        ++referenceLength;
-                    }
-                }
-            }
+    
+    ReferenceManager(List<Reference> references, String[] validReferences) {
+        if (validReferences != null) {
+            this.validReferences.addAll(Arrays.asList(validReferences));
+        }
+        for (Reference reference : references) {
+            addReference(reference);
         }
     }
     
+    private void addReference(Reference reference) {
+        referenceIds.put(reference.getName(), references.size());
+        references.add(reference);
+        totalLength += reference.getLength();
+    }
+    
     public int getReferenceNumber() {
         return referenceIds.size();
     }
@@ -173,6 +90,10 @@ public class ReferenceManager implements Serializable {
         return totalLength;
     }
     
+    public Set<String> getValidReferences() {
+        return validReferences;
+    }
+    
     public Reference getReference(String referenceName) {
         Integer id = referenceIds.get(referenceName);
         if (id == null) {
@@ -214,45 +135,61 @@ public class ReferenceManager implements Serializable {
     }
     
     public byte getBase(int referenceId, long position) {
+        Sequence s = references.get(referenceId).findSequence(position);
+        if (s == null) {
+            return 'N';
+        }
+        return MosaicHunterHelper.ID_TO_BASE[getBaseId(s, position)];
+    }
+    
+    // fills out[0 .. end - start] with the bases of [start, end], 'N' outside of the 
+    // ACGT runs
+    public void getBases(int referenceId, long start, long end, byte[] out) {
+        Arrays.fill(out, 0, (int) (end - start + 1), (byte) 'N');
         Reference reference = references.get(referenceId);
-        for (Sequence s : reference.getSequences()) {
-            if (position > s.getStart() && position <= s.getStart() + s.getLength()) {
-                return MosaicHunterHelper.ID_TO_BASE[getBaseId(s, position)];
+        List<Sequence> sequences = reference.getSequences();
+        for (int i = Math.max(reference.floorSequenceIndex(start), 0); 
+             i < sequences.size(); ++i) {
+            Sequence s = sequences.get(i);
+            if (s.getStart() >= end) {
+                break;
+            }
+            long from = Math.max(start, s.getStart() + 1);
+            long to = Math.min(end, s.getStart() + s.getLength());
+            for (long p = from; p <= to; ++p) {
+                out[(int) (p - start)] = MosaicHunterHelper.ID_TO_BASE[getBaseId(s, p)];
             }
         }
-        return 'N';
     }
     
     public byte getBaseWithCache(int referenceId, long position) {
+        BaseCache cache = baseCache.get();
+        Sequence lastSequence = cache.lastSequence;
         if (lastSequence != null && 
-            lastReferenceId == referenceId && 
-            (position == lastPosition + 1 || position == lastPosition)) {
+            cache.lastReferenceId == referenceId && 
+            (position == cache.lastPosition + 1 || position == cache.lastPosition)) {
             byte ret = MosaicHunterHelper.ID_TO_BASE[getBaseId(lastSequence, position)];
             if (position < lastSequence.getStart() + lastSequence.getLength()) {
-                lastPosition = position;
+                cache.lastPosition = position;
             } else {
-                lastSequence = null;
+                cache.lastSequence = null;
             }
             return ret;
         }
-        Reference reference = references.get(referenceId);
-        for (Sequence s : reference.getSequences()) {
-            if (position > s.getStart() && position <= s.getStart() + s.getLength()) {
-                if (position < s.getStart() + s.getLength()) {
-                    lastSequence = s;
-                    lastReferenceId = referenceId;
-                    lastPosition = position;
-                }
-                return MosaicHunterHelper.ID_TO_BASE[getBaseId(s, position)];
-            }
+        Sequence s = references.get(referenceId).findSequence(position);
+        if (s == null) {
+            return 'N';
         }
-        
-        return 'N';
+        if (position < s.getStart() + s.getLength()) {
+            cache.lastSequence = s;
+            cache.lastReferenceId = referenceId;
+            cache.lastPosition = position;
+        }
+        return MosaicHunterHelper.ID_TO_BASE[getBaseId(s, position)];
     }
     
     private static int getBaseId(Sequence s, long position) {
-        long offset = position - s.getStart() - 1;
-        return (int) ((s.getBases()[(int) (offset >>> 5)] >> ((offset & 31) << 1)) & 3);
+        return s.getBaseId(position - s.getStart() - 1);
     }
     
     public byte getBase(String referenceName, long position) {
@@ -263,5 +200,10 @@ public class ReferenceManager implements Serializable {
         return getBase(id, position);
     }
   
+    
+    private static class BaseCache {
+        private int lastReferenceId;
+        private long lastPosition;
+        private Sequence lastSequence;
+    }
 }
-
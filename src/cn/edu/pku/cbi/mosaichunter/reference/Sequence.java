@@ -22,18 +22,22 @@
  * THE SOFTWARE.
  */
 
+
 package cn.edu.pku.cbi.mosaichunter.reference;
 
-import java.io.Serializable;
+import java.nio.LongBuffer;
 
-public class Sequence implements Serializable {
-    private static final long serialVersionUID = 1L;
+public class Sequence {
     
     private final long start;
     private final long length;
-    private final long[] bases;
+    private final LongBuffer bases;
     
     public Sequence(long start, long length, long[] bases) {
+        this(start, length, LongBuffer.wrap(bases));
+    }
+    
+    public Sequence(long start, long length, LongBuffer bases) {
         this.start = start;
         this.length = length;
         this.bases = bases;
@@ -47,8 +51,12 @@ public class Sequence implements Serializable {
         return length;
     }
 
-    public long[] getBases() {
+    public LongBuffer getBases() {
         return bases;
     }
     
+    public int getBaseId(long offset) {
+        return (int) ((bases.get((int) (offset >>> 5)) >> ((offset & 31) << 1)) & 3);
+    }
+    
 }
\ No newline at end of file